@@ -2,6 +2,7 @@ module top.spco.cashflow {
     requires javafx.controls;
     requires javafx.fxml;
     requires org.apache.poi.ooxml;
+    requires java.xml;
     requires org.yaml.snakeyaml;
 
     opens top.spco.cashflow to javafx.fxml;
@@ -16,18 +16,28 @@
 package top.spco.cashflow.data;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
+/**
+ * 分类树：类别 -> 子类别，ID 即列表下标。
+ * 名称到 ID 另有哈希索引（同名时取首个，与按序扫描的结果一致），追加/改名/删除时同步维护。
+ */
 public final class CategoryTaxonomy {
     private final List<String> categories;
     private final List<List<String>> subs; // 与 categories 对齐
+    private final Map<String, Integer> catIds = new HashMap<>();
+    private final List<Map<String, Integer>> subIds = new ArrayList<>(); // 与 categories 对齐
 
     public CategoryTaxonomy(List<String> categories, List<List<String>> subs) {
         this.categories = new ArrayList<>(Objects.requireNonNull(categories));
-        this.subs = new ArrayList<>(Objects.requireNonNull(subs));
+        this.subs = new ArrayList<>(Objects.requireNonNull(subs).size());
+        for (List<String> l : subs) this.subs.add(new ArrayList<>(l));
         if (this.categories.size() != this.subs.size())
             throw new IllegalArgumentException("分类与子分类数量不匹配");
+        reindex();
     }
 
     public int categoryCount() {
@@ -51,23 +61,121 @@ public final class CategoryTaxonomy {
     }
 
     public List<String> subsOf(String category) {
-        int catId = categoryIdOf(category);
+        int catId = indexOfCategory(category);
         if (catId < 0) return List.of();
         return new ArrayList<>(subs.get(catId));
     }
 
+    /**
+     * 查找类别 ID，不存在返回 -1（不追加）
+     */
+    public int indexOfCategory(String name) {
+        Integer id = catIds.get(name);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * 查找子类 ID，不存在返回 -1（不追加）
+     */
+    public int indexOfSub(int catId, String subName) {
+        Integer id = subIds.get(catId).get(subName);
+        return (id == null) ? -1 : id;
+    }
+
     public int categoryIdOf(String name) {
-        for (int i = 0; i < categories.size(); i++) if (categories.get(i).equals(name)) return i;
+        Integer id = catIds.get(name);
+        if (id != null) return id;
         // 不存在则追加一个新类别（调用处需保证至少有一个子类再保存）
         categories.add(name);
         subs.add(new ArrayList<>());
+        subIds.add(new HashMap<>());
+        catIds.put(name, categories.size() - 1);
         return categories.size() - 1;
     }
 
     public int subIdOf(int catId, String subName) {
+        Map<String, Integer> ids = subIds.get(catId);
+        Integer id = ids.get(subName);
+        if (id != null) return id;
         List<String> list = subs.get(catId);
-        for (int i = 0; i < list.size(); i++) if (list.get(i).equals(subName)) return i;
         list.add(subName);
+        ids.put(subName, list.size() - 1);
         return list.size() - 1;
     }
-}
\ No newline at end of file
+
+    // ---------- (类别, 子类) 组合键 ----------
+
+    /**
+     * 一次解析（不存在则追加）类别与子类，返回组合键；热路径上可直接用作 long 型哈希键
+     */
+    public long pairKeyOf(String category, String subName) {
+        int c = categoryIdOf(category);
+        return pairKey(c, subIdOf(c, subName));
+    }
+
+    public static long pairKey(int catId, int subId) {
+        return ((long) catId << 32) | (subId & 0xFFFFFFFFL);
+    }
+
+    public static int catOf(long pairKey) {
+        return (int) (pairKey >>> 32);
+    }
+
+    public static int subOf(long pairKey) {
+        return (int) pairKey;
+    }
+
+    // ---------- 改名与删除 ----------
+
+    /**
+     * 类别改名；新名称已被其他类别占用时抛 IllegalArgumentException
+     */
+    public void renameCategory(int catId, String newName) {
+        int other = indexOfCategory(newName);
+        if (other >= 0 && other != catId) throw new IllegalArgumentException("类别【" + newName + "】已存在");
+        categories.set(catId, newName);
+        reindexCategories();
+    }
+
+    public void renameSub(int catId, int subId, String newName) {
+        int other = indexOfSub(catId, newName);
+        if (other >= 0 && other != subId) throw new IllegalArgumentException("子类【" + newName + "】已存在");
+        subs.get(catId).set(subId, newName);
+        subIds.set(catId, indexOf(subs.get(catId)));
+    }
+
+    /**
+     * 删除类别；其后各类别的 ID 依次前移，调用方需自行改写引用它们的数据
+     */
+    public void removeCategory(int catId) {
+        categories.remove(catId);
+        subs.remove(catId);
+        subIds.remove(catId);
+        reindexCategories();
+    }
+
+    /**
+     * 删除子类；同一类别下其后各子类的 ID 依次前移
+     */
+    public void removeSub(int catId, int subId) {
+        subs.get(catId).remove(subId);
+        subIds.set(catId, indexOf(subs.get(catId)));
+    }
+
+    private void reindex() {
+        reindexCategories();
+        subIds.clear();
+        for (List<String> l : subs) subIds.add(indexOf(l));
+    }
+
+    private void reindexCategories() {
+        catIds.clear();
+        catIds.putAll(indexOf(categories));
+    }
+
+    private static Map<String, Integer> indexOf(List<String> names) {
+        Map<String, Integer> m = new HashMap<>(Math.max(4, names.size() * 2));
+        for (int i = 0; i < names.size(); i++) m.putIfAbsent(names.get(i), i);
+        return m;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2025 SpCo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package top.spco.cashflow.data;
+
+import top.spco.cashflow.util.Dates;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 按类别与（类别, 子类）汇总金额，一次遍历账本的原始列完成，循环内不分配对象、不解析名称。
+ * <p>
+ * 汇总结果存放在若干 long[] 中，下标为“桶”：前 categoryCount 个桶对应类别，
+ * 其后按类别依次排列各子类的桶（见 {@link #categoryBucket}、{@link #subBucket}）。
+ * 另按账本所属月份的每一天（系统时区）汇总收支；不在该月内的行只计入类别桶。
+ * 名称只在调用方展示时按 taxonomy 解析。
+ * <p>
+ * 汇总可随快照一起保存（见 {@link LedgerIO#save}），
+ * 之后的分析直接读取，不必扫描行。
+ */
+public final class LedgerAggregate {
+    private final int[] subStart; // 类别 c 的首个子类桶
+    private final long[] count;
+    private final long[] income;       // >0 的和
+    private final long[] expense;      // <=0 的和（负数累计）
+    private final long[] expenseCount;
+    private final long[] maxExpense;   // 最“负”的一笔（无支出为 0）
+    private final long[] firstTs;      // 最早时间戳，用于按首次出现排序
+
+    private final long[] dayStart;     // 每天零点的毫秒，末尾多一个元素为下月首日零点
+    private final long[] dayCount;
+    private final long[] dayIncome;
+    private final long[] dayExpense;
+
+    private long totalIncome, totalExpenseAbs, net, rows;
+    private long minTs = Long.MAX_VALUE, maxTs = Long.MIN_VALUE;
+
+    private LedgerAggregate(CategoryTaxonomy taxonomy, YearMonth ym) {
+        int C = taxonomy.categoryCount();
+        subStart = new int[C];
+        int buckets = C;
+        for (int c = 0; c < C; c++) {
+            subStart[c] = buckets;
+            buckets += taxonomy.subCount(c);
+        }
+        count = new long[buckets];
+        income = new long[buckets];
+        expense = new long[buckets];
+        expenseCount = new long[buckets];
+        maxExpense = new long[buckets];
+        firstTs = new long[buckets];
+        Arrays.fill(firstTs, Long.MAX_VALUE);
+
+        int days = ym.lengthOfMonth();
+        dayStart = new long[days + 1];
+        for (int d = 0; d <= days; d++) dayStart[d] = Dates.startOfDayMillis(ym.atDay(1).plusDays(d));
+        dayCount = new long[days];
+        dayIncome = new long[days];
+        dayExpense = new long[days];
+    }
+
+    /**
+     * 汇总整个账本；账本中的类别/子类 ID 按 taxonomy 解释。
+     * 未分类（ID 为负）或超出分类树的类别/子类不计入对应的桶，但仍计入总数与按日汇总
+     */
+    public static LedgerAggregate of(MonthlyLedger ledger, CategoryTaxonomy taxonomy) {
+        LedgerAggregate a = new LedgerAggregate(taxonomy, YearMonth.of(ledger.year(), ledger.month()));
+        final long[] ts = ledger.ts, amount = ledger.amount;
+        final int[] cat = ledger.cat, subcat = ledger.subcat;
+        final BitSet deleted = ledger.deleted;
+        final boolean sorted = ledger.sortedByTime;
+        long inc = 0, exp = 0, sum = 0, min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        int day = 0; // 已排序时顺着行推进的当前日，代替逐行二分
+        for (int i = 0, n = ledger.size; i < n; i++) {
+            if (deleted != null && deleted.get(i)) continue;
+            int c = cat[i];
+            long v = amount[i], t = ts[i];
+            if (c >= 0 && c < a.subStart.length) {
+                a.add(c, v, t);
+                int s = subcat[i];
+                if (s >= 0 && s < a.subCount(c)) a.add(a.subStart[c] + s, v, t);
+            }
+            if (sorted) day = a.addDayFrom(day, v, t);
+            else a.addDay(v, t);
+            if (v > 0) inc += v;
+            else exp -= v;
+            sum += v;
+            if (t < min) min = t;
+            if (t > max) max = t;
+        }
+        a.totalIncome = inc;
+        a.totalExpenseAbs = exp;
+        a.net = sum;
+        a.rows = ledger.liveCount();
+        a.minTs = min;
+        a.maxTs = max;
+        return a;
+    }
+
+    private int subCount(int c) {
+        return ((c + 1 < subStart.length) ? subStart[c + 1] : count.length) - subStart[c];
+    }
+
+    private void add(int b, long v, long t) {
+        count[b]++;
+        if (v > 0) {
+            income[b] += v;
+        } else {
+            expense[b] += v;
+            expenseCount[b]++;
+            if (v < maxExpense[b]) maxExpense[b] = v;
+        }
+        if (t < firstTs[b]) firstTs[b] = t;
+    }
+
+    private void addDay(long v, long t) {
+        int days = dayCount.length;
+        if (t < dayStart[0] || t >= dayStart[days]) return;
+        int lo = 0, hi = days; // 不变式：dayStart[lo] <= t < dayStart[hi]
+        while (hi - lo > 1) {
+            int mid = (lo + hi) >>> 1;
+            if (dayStart[mid] <= t) lo = mid;
+            else hi = mid;
+        }
+        dayCount[lo]++;
+        if (v > 0) dayIncome[lo] += v;
+        else dayExpense[lo] += v;
+    }
+
+    /**
+     * 行按时间非降序到达时使用：从 day 起向后找所在日，返回新的当前日
+     */
+    private int addDayFrom(int day, long v, long t) {
+        int days = dayCount.length;
+        if (t < dayStart[0] || t >= dayStart[days]) return day;
+        while (t >= dayStart[day + 1]) day++;
+        dayCount[day]++;
+        if (v > 0) dayIncome[day] += v;
+        else dayExpense[day] += v;
+        return day;
+    }
+
+    public int categoryBucket(int catId) {
+        return catId;
+    }
+
+    public int subBucket(int catId, int subId) {
+        return subStart[catId] + subId;
+    }
+
+    public long count(int bucket) {
+        return count[bucket];
+    }
+
+    public long income(int bucket) {
+        return income[bucket];
+    }
+
+    public long expense(int bucket) {
+        return expense[bucket];
+    }
+
+    public long expenseCount(int bucket) {
+        return expenseCount[bucket];
+    }
+
+    public long maxExpense(int bucket) {
+        return maxExpense[bucket];
+    }
+
+    /**
+     * 桶内最早的时间戳；空桶为 Long.MAX_VALUE
+     */
+    public long firstTimestamp(int bucket) {
+        return firstTs[bucket];
+    }
+
+    /**
+     * 该月天数；按日汇总的 day 参数取 1..days()
+     */
+    public int days() {
+        return dayCount.length;
+    }
+
+    public long dayCount(int day) {
+        return dayCount[day - 1];
+    }
+
+    public long dayIncome(int day) {
+        return dayIncome[day - 1];
+    }
+
+    public long dayExpense(int day) {
+        return dayExpense[day - 1];
+    }
+
+    public long totalIncome() {
+        return totalIncome;
+    }
+
+    public long totalExpenseAbs() {
+        return totalExpenseAbs;
+    }
+
+    public long net() {
+        return net;
+    }
+
+    public long rows() {
+        return rows;
+    }
+
+    /**
+     * 全部行（含未分类）中最早的时间戳；没有行时为 Long.MAX_VALUE
+     */
+    public long minTimestamp() {
+        return minTs;
+    }
+
+    /**
+     * 全部行（含未分类）中最晚的时间戳；没有行时为 Long.MIN_VALUE
+     */
+    public long maxTimestamp() {
+        return maxTs;
+    }
+
+    // ---------- 持久化（由 LedgerIO 加上版本与校验后写在快照末尾） ----------
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeUTF(ZoneId.systemDefault().getId());
+        out.writeLong(rows);
+        out.writeLong(totalIncome);
+        out.writeLong(totalExpenseAbs);
+        out.writeLong(net);
+        out.writeLong(minTs);
+        out.writeLong(maxTs);
+        out.writeInt(count.length);
+        for (long[] col : new long[][]{count, income, expense, expenseCount, maxExpense, firstTs}) {
+            for (long v : col) out.writeLong(v);
+        }
+        out.writeInt(dayCount.length);
+        for (long[] col : new long[][]{dayCount, dayIncome, dayExpense}) {
+            for (long v : col) out.writeLong(v);
+        }
+    }
+
+    /**
+     * 读回汇总；与给定的分类树/月份/行数对不上，或按日汇总所用的时区已变化时返回 null（调用方改为扫描行）
+     */
+    static LedgerAggregate readFrom(DataInputStream in, CategoryTaxonomy taxonomy, YearMonth ym, int rows) throws IOException {
+        if (!in.readUTF().equals(ZoneId.systemDefault().getId())) return null;
+        LedgerAggregate a = new LedgerAggregate(taxonomy, ym);
+        a.rows = in.readLong();
+        a.totalIncome = in.readLong();
+        a.totalExpenseAbs = in.readLong();
+        a.net = in.readLong();
+        a.minTs = in.readLong();
+        a.maxTs = in.readLong();
+        if (a.rows != rows || in.readInt() != a.count.length) return null;
+        for (long[] col : new long[][]{a.count, a.income, a.expense, a.expenseCount, a.maxExpense, a.firstTs}) {
+            for (int i = 0; i < col.length; i++) col[i] = in.readLong();
+        }
+        if (in.readInt() != a.dayCount.length) return null;
+        for (long[] col : new long[][]{a.dayCount, a.dayIncome, a.dayExpense}) {
+            for (int i = 0; i < col.length; i++) col[i] = in.readLong();
+        }
+        return a;
+    }
+}
@@ -16,37 +16,173 @@
 package top.spco.cashflow.data;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.time.YearMonth;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.zip.CRC32;
 
 public final class LedgerIO {
     private static final int MAGIC = 0x4D4C4432; // 'MLD2'
     private static final int VERSION = 2;
+    // 每行在列区占用的字节数：ts + amount + cat + subcat + noteOff + noteLen
+    private static final int ROW_BYTES = Long.BYTES * 2 + Integer.BYTES * 4;
+    // 分类树之后的可选段，每段为 [MAGIC][版本][长度][内容][内容的 CRC32]，旧版读取器读完分类树即停止，不受影响。
+    // 汇总段写在最前，只认紧跟分类树的汇总段的读取器照样可用
+    private static final int SUMMARY_MAGIC = 0x4D53554D; // 'MSUM'
+    private static final int SUMMARY_VERSION = 2; // 2：加入最早/最晚时间戳；旧版本的汇总段视为缺失
+    // 行序段：内容为一个标志字
+    private static final int ORDER_MAGIC = 0x4D4F5244; // 'MORD'
+    private static final int ORDER_VERSION = 1;
+    private static final int ORDER_SORTED_BY_TIME = 1; // 各行按时间戳非降序，读取后无需排序或检查
 
-    public static void save(MonthlyLedger ledger, CategoryTaxonomy taxonomy, File file) throws IOException {
+    /**
+     * 各列先批量填入直接缓冲区，再用一次聚集写（gathering write）落盘；字节布局与 MLD2 完全一致。
+     * <p>
+     * 崩溃安全：先写同目录下的临时文件并 force()，再原子替换目标文件，最后尽量 fsync 目录使改名持久化。
+     * 任一步失败时原文件保持不变。替换成功后删除旧的编辑日志（见 {@link LedgerJournal}）。
+     *
+     * @return 新快照的长度与 CRC32，供之后追加日志时标识所依附的快照
+     */
+    public static Snapshot save(MonthlyLedger ledger, CategoryTaxonomy taxonomy, File file) throws IOException {
+        return save(ledger, taxonomy, file, true);
+    }
+
+    /**
+     * @param withSummary 是否在文件末尾附带汇总段（见 {@link #loadSummary}）
+     */
+    public static Snapshot save(MonthlyLedger ledger, CategoryTaxonomy taxonomy, File file, boolean withSummary) throws IOException {
+        ByteBuffer[] parts = encode(ledger, taxonomy, withSummary);
+        Snapshot snapshot = fingerprint(parts);
+        Path target = file.toPath().toAbsolutePath();
+        Path dir = target.getParent();
+        Path tmp = Files.createTempFile(dir, "." + target.getFileName() + ".", ".tmp");
+        try {
+            keepPermissions(target, tmp);
+            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(ch, parts);
+                ch.force(true);
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        LedgerJournal.delete(file);
+        syncDirectory(dir);
+        return snapshot;
+    }
+
+    /**
+     * 快照指纹：文件长度 + 全文 CRC32。日志头记录它，快照被整体重写后旧日志即失效
+     */
+    public record Snapshot(long length, int crc) {
+    }
+
+    private static Snapshot fingerprint(ByteBuffer[] parts) {
+        CRC32 crc = new CRC32();
+        long length = 0;
+        for (ByteBuffer p : parts) {
+            length += p.remaining();
+            crc.update(p.duplicate());
+        }
+        return new Snapshot(length, (int) crc.getValue());
+    }
+
+    /**
+     * 临时文件默认仅属主可读写；覆盖已有文件时沿用其 POSIX 权限
+     */
+    private static void keepPermissions(Path from, Path to) throws IOException {
+        if (!Files.exists(from)) return;
+        PosixFileAttributeView src = Files.getFileAttributeView(from, PosixFileAttributeView.class);
+        if (src == null) return;
+        Files.setPosixFilePermissions(to, src.readAttributes().permissions());
+    }
+
+    /**
+     * fsync 目录以持久化改名；Windows 等不支持以只读方式打开目录的平台上静默跳过
+     */
+    static void syncDirectory(Path dir) {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException ignore) {
+        }
+    }
+
+    static ByteBuffer[] encode(MonthlyLedger ledger, CategoryTaxonomy taxonomy, boolean withSummary) throws IOException {
         Objects.requireNonNull(ledger);
         Objects.requireNonNull(taxonomy);
         if (taxonomy.categoryCount() == 0) throw new IOException("至少需要一个类别");
-        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
-            out.writeInt(MAGIC);
-            out.writeInt(VERSION);
+        // 墓碑与备注空洞不落盘：写一份紧凑的副本，调用方的行号不受影响
+        if (ledger.deletedRows() > 0 || ledger.garbageNoteBytes() > 0) ledger = liveCopy(ledger);
+        int n = ledger.size();
 
-            out.writeInt(ledger.year());
-            out.writeInt(ledger.month());
-            out.writeInt(ledger.size());
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 5);
+        header.putInt(MAGIC).putInt(VERSION).putInt(ledger.year()).putInt(ledger.month()).putInt(n).flip();
 
-            for (int i = 0; i < ledger.size(); i++) out.writeLong(ledger.ts[i]);
-            for (int i = 0; i < ledger.size(); i++) out.writeLong(ledger.amount[i]);
-            for (int i = 0; i < ledger.size(); i++) out.writeInt(ledger.cat[i]);
-            for (int i = 0; i < ledger.size(); i++) out.writeInt(ledger.subcat[i]);
-            for (int i = 0; i < ledger.size(); i++) out.writeInt(ledger.noteOff[i]);
-            for (int i = 0; i < ledger.size(); i++) out.writeInt(ledger.noteLen[i]);
+        ByteBuffer blobHeader = ByteBuffer.allocate(Integer.BYTES);
+        blobHeader.putInt(ledger.noteSize).flip();
 
-            out.writeInt(ledger.noteSize);
-            out.write(ledger.noteBlob, 0, ledger.noteSize);
+        ByteBuffer summary = withSummary ? ByteBuffer.wrap(encodeSummary(LedgerAggregate.of(ledger, taxonomy))) : ByteBuffer.allocate(0);
+        int orderFlags = ledger.isSortedByTime() ? ORDER_SORTED_BY_TIME : 0;
+        ByteBuffer order = ByteBuffer.wrap(encodeSection(ORDER_MAGIC, ORDER_VERSION, ByteBuffer.allocate(Integer.BYTES).putInt(orderFlags).array()));
+
+        return new ByteBuffer[]{
+                header,
+                longColumn(ledger.ts, n),
+                longColumn(ledger.amount, n),
+                intColumn(ledger.cat, n),
+                intColumn(ledger.subcat, n),
+                intColumn(ledger.noteOff, n),
+                intColumn(ledger.noteLen, n),
+                blobHeader,
+                ByteBuffer.wrap(ledger.noteBlob, 0, ledger.noteSize),
+                ByteBuffer.wrap(encodeTaxonomy(taxonomy)),
+                summary,
+                order
+        };
+    }
 
-            // 分类树
+    private static byte[] encodeSummary(LedgerAggregate aggregate) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(1024);
+        try (DataOutputStream out = new DataOutputStream(payload)) {
+            aggregate.writeTo(out);
+        }
+        return encodeSection(SUMMARY_MAGIC, SUMMARY_VERSION, payload.toByteArray());
+    }
+
+    private static byte[] encodeSection(int magic, int version, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + Integer.BYTES * 4);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) crc.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    static byte[] encodeTaxonomy(CategoryTaxonomy taxonomy) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
             int C = taxonomy.categoryCount();
             out.writeInt(C);
             for (int c = 0; c < C; c++) {
@@ -59,59 +195,254 @@ public final class LedgerIO {
                 }
             }
         }
+        return bytes.toByteArray();
+    }
+
+    private static ByteBuffer longColumn(long[] src, int n) {
+        ByteBuffer b = ByteBuffer.allocateDirect(n * Long.BYTES); // 默认大端
+        b.asLongBuffer().put(src, 0, n);
+        return b; // position 仍为 0，limit 为容量
+    }
+
+    private static ByteBuffer intColumn(int[] src, int n) {
+        ByteBuffer b = ByteBuffer.allocateDirect(n * Integer.BYTES);
+        b.asIntBuffer().put(src, 0, n);
+        return b;
     }
 
+    private static void writeFully(FileChannel ch, ByteBuffer[] parts) throws IOException {
+        int first = 0;
+        while (first < parts.length) {
+            ch.write(parts, first, parts.length - first);
+            while (first < parts.length && !parts[first].hasRemaining()) first++;
+        }
+    }
+
+    /**
+     * 整个文件经 FileChannel 一次读入缓冲区，各列再通过 LongBuffer/IntBuffer 视图批量拷贝，
+     * 不再逐元素 readLong/readInt。
+     * <p>
+     * 没有使用 FileChannel.map：映射在 GC 回收前不会释放，Windows 上会导致随后保存同一文件时无法截断/替换。
+     * <p>
+     * 若存在属于该快照的编辑日志，读完快照后按序回放。
+     */
     public static Bundle load(File file) throws IOException {
-        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
-            int magic = in.readInt();
-            if (magic != MAGIC) throw new IOException("非法文件头");
-            int ver = in.readInt();
+        ByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long len = ch.size();
+            if (len > Integer.MAX_VALUE) throw new IOException("文件过大: " + len + " 字节");
+            buf = ByteBuffer.allocate((int) len); // 大端，与 DataOutputStream 写出的字节序一致
+            while (buf.hasRemaining()) {
+                if (ch.read(buf) < 0) break;
+            }
+            buf.flip();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), buf.arrayOffset(), buf.limit());
+        Snapshot snapshot = new Snapshot(buf.limit(), (int) crc.getValue());
+        Bundle snap;
+        try {
+            snap = read(buf);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("文件已损坏（长度不足）", e);
+        }
+        LedgerJournal.Replay replay = LedgerJournal.replay(file, snapshot, snap.ledger, snap.taxonomy);
+        if (replay == null) return new Bundle(snap.ledger, snap.taxonomy, identityIds(snap.ledger.size()), snap.ledger.size(), snapshot, 0);
+        return new Bundle(replay.ledger(), snap.taxonomy, replay.rowIds(), replay.nextRowId(), snapshot, replay.length());
+    }
+
+    /**
+     * 只读取文件头、分类树与尾部汇总段，不读行数据。
+     * 汇总段缺失、版本不识别、校验不符或与文件内容对不上，或存在编辑日志（快照之后有改动）时返回 null，
+     * 调用方应改用 {@link #load} 后自行汇总。
+     */
+    public static Summary loadSummary(File file) throws IOException {
+        if (LedgerJournal.fileFor(file).isFile()) return null;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long len = ch.size();
+            ByteBuffer header = readAt(ch, 0, Integer.BYTES * 5);
+            if (header.getInt() != MAGIC) throw new IOException("非法文件头");
+            int ver = header.getInt();
             if (ver != VERSION) throw new IOException("不支持的版本: " + ver);
+            YearMonth ym = YearMonth.of(header.getInt(), header.getInt());
+            int size = header.getInt();
+            long blobPos = Integer.BYTES * 5 + (long) size * ROW_BYTES;
+            if (size < 0 || blobPos + Integer.BYTES > len) throw new IOException("文件已损坏（行数非法: " + size + "）");
+            int blobSize = readAt(ch, blobPos, Integer.BYTES).getInt();
+            long tailPos = blobPos + Integer.BYTES + blobSize;
+            if (blobSize < 0 || tailPos > len) throw new IOException("文件已损坏（备注长度非法: " + blobSize + "）");
+            if (len - tailPos > Integer.MAX_VALUE) throw new IOException("文件过大: " + len + " 字节");
+            ByteBuffer tail = readAt(ch, tailPos, (int) (len - tailPos));
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(tail.array(), 0, tail.limit()));
+            CategoryTaxonomy taxonomy = readTaxonomy(in);
+            LedgerAggregate aggregate = readSummary(readSections(in), taxonomy, ym, size);
+            return (aggregate == null) ? null : new Summary(ym, taxonomy, aggregate);
+        }
+    }
 
-            int year = in.readInt();
-            int month = in.readInt();
-            int size = in.readInt();
-
-            MonthlyLedger ledger = new MonthlyLedger(year, month, size, 4096);
-            for (int i = 0; i < size; i++) ledger.ts[i] = in.readLong();
-            for (int i = 0; i < size; i++) ledger.amount[i] = in.readLong();
-            for (int i = 0; i < size; i++) ledger.cat[i] = in.readInt();
-            for (int i = 0; i < size; i++) ledger.subcat[i] = in.readInt();
-            for (int i = 0; i < size; i++) ledger.noteOff[i] = in.readInt();
-            for (int i = 0; i < size; i++) ledger.noteLen[i] = in.readInt();
-
-            int blobSize = in.readInt();
-            ledger.noteBlob = new byte[Math.max(blobSize, 128)];
-            in.readFully(ledger.noteBlob, 0, blobSize);
-            ledger.noteSize = blobSize;
-            ledger.size = size;
-
-            // 分类树
-            int C = in.readInt();
-            if (C <= 0) throw new IOException("文件中未包含任何类别");
-            List<String> cats = new ArrayList<>(C);
-            List<List<String>> subs = new ArrayList<>(C);
-            for (int c = 0; c < C; c++) {
-                String catName = in.readUTF();
-                cats.add(catName);
-                int S = in.readInt();
-                if (S <= 0) throw new IOException("类别【" + catName + "】没有子类别");
-                List<String> subList = new ArrayList<>(S);
-                for (int s = 0; s < S; s++) subList.add(in.readUTF());
-                subs.add(subList);
-            }
-            CategoryTaxonomy taxonomy = new CategoryTaxonomy(cats, subs);
-            return new Bundle(ledger, taxonomy);
+    /**
+     * 文件尾部汇总段的内容；aggregate 中的 ID 按 taxonomy 解释
+     */
+    public record Summary(YearMonth yearMonth, CategoryTaxonomy taxonomy, LedgerAggregate aggregate) {
+    }
+
+    private static ByteBuffer readAt(FileChannel ch, long pos, int n) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(n);
+        while (b.hasRemaining()) {
+            if (ch.read(b, pos + b.position()) < 0) throw new IOException("文件已损坏（长度不足）");
+        }
+        return b.flip();
+    }
+
+    private record Section(int version, byte[] payload) {
+    }
+
+    /**
+     * 逐段读取分类树之后的可选段（magic -> 段）；遇到残缺或校验不符的段即停止，之后的内容一概忽略
+     */
+    private static Map<Integer, Section> readSections(DataInputStream in) throws IOException {
+        Map<Integer, Section> sections = new HashMap<>();
+        while (in.available() >= Integer.BYTES * 3) {
+            int magic = in.readInt();
+            int version = in.readInt();
+            int n = in.readInt();
+            if (n < 0 || n > in.available() - Integer.BYTES) break;
+            byte[] payload = new byte[n];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (in.readInt() != (int) crc.getValue()) break;
+            sections.putIfAbsent(magic, new Section(version, payload));
+        }
+        return sections;
+    }
+
+    /**
+     * 汇总段；不存在或不可用时返回 null
+     */
+    private static LedgerAggregate readSummary(Map<Integer, Section> sections, CategoryTaxonomy taxonomy, YearMonth ym, int rows) throws IOException {
+        Section s = sections.get(SUMMARY_MAGIC);
+        if (s == null || s.version() != SUMMARY_VERSION) return null;
+        try {
+            return LedgerAggregate.readFrom(new DataInputStream(new ByteArrayInputStream(s.payload())), taxonomy, ym, rows);
+        } catch (EOFException e) {
+            return null;
         }
     }
 
+    /**
+     * 行序段记录的排序标志；没有该段（旧文件）时扫描一遍确认
+     */
+    private static boolean sortedByTime(Map<Integer, Section> sections, long[] ts, int n) {
+        Section s = sections.get(ORDER_MAGIC);
+        if (s != null && s.version() == ORDER_VERSION && s.payload().length >= Integer.BYTES) {
+            return (ByteBuffer.wrap(s.payload()).getInt() & ORDER_SORTED_BY_TIME) != 0;
+        }
+        for (int i = 1; i < n; i++) {
+            if (ts[i] < ts[i - 1]) return false;
+        }
+        return true;
+    }
+
+    private static MonthlyLedger liveCopy(MonthlyLedger ledger) {
+        MonthlyLedger out = new MonthlyLedger(ledger.year(), ledger.month(), ledger.liveCount(), ledger.noteSize - ledger.garbageNoteBytes());
+        for (int r = 0; r < ledger.size(); r++) {
+            if (ledger.isLive(r)) out.copyRowFrom(ledger, r);
+        }
+        return out;
+    }
+
+    private static long[] identityIds(int n) {
+        long[] ids = new long[n];
+        for (int i = 0; i < n; i++) ids[i] = i;
+        return ids;
+    }
+
+    private static Bundle read(ByteBuffer buf) throws IOException {
+        int magic = buf.getInt();
+        if (magic != MAGIC) throw new IOException("非法文件头");
+        int ver = buf.getInt();
+        if (ver != VERSION) throw new IOException("不支持的版本: " + ver);
+
+        int year = buf.getInt();
+        int month = buf.getInt();
+        int size = buf.getInt();
+        if (size < 0 || (long) size * ROW_BYTES > buf.remaining()) throw new IOException("文件已损坏（行数非法: " + size + "）");
+
+        MonthlyLedger ledger = new MonthlyLedger(year, month, size, 4096);
+        readLongs(buf, ledger.ts, size);
+        readLongs(buf, ledger.amount, size);
+        readInts(buf, ledger.cat, size);
+        readInts(buf, ledger.subcat, size);
+        readInts(buf, ledger.noteOff, size);
+        readInts(buf, ledger.noteLen, size);
+
+        int blobSize = buf.getInt();
+        if (blobSize < 0 || blobSize > buf.remaining()) throw new IOException("文件已损坏（备注长度非法: " + blobSize + "）");
+        ledger.noteBlob = new byte[Math.max(blobSize, 128)];
+        buf.get(ledger.noteBlob, 0, blobSize);
+        ledger.noteSize = blobSize;
+        ledger.size = size;
+
+        // 分类树（writeUTF 格式，数据量小，直接在剩余字节上用 DataInputStream 读）
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining()));
+        CategoryTaxonomy taxonomy = readTaxonomy(in);
+        ledger.sortedByTime = sortedByTime(readSections(in), ledger.ts, size);
+        return new Bundle(ledger, taxonomy);
+    }
+
+    static CategoryTaxonomy readTaxonomy(DataInputStream in) throws IOException {
+        int C = in.readInt();
+        if (C <= 0) throw new IOException("文件中未包含任何类别");
+        List<String> cats = new ArrayList<>(C);
+        List<List<String>> subs = new ArrayList<>(C);
+        for (int c = 0; c < C; c++) {
+            String catName = in.readUTF();
+            cats.add(catName);
+            int S = in.readInt();
+            if (S <= 0) throw new IOException("类别【" + catName + "】没有子类别");
+            List<String> subList = new ArrayList<>(S);
+            for (int s = 0; s < S; s++) subList.add(in.readUTF());
+            subs.add(subList);
+        }
+        return new CategoryTaxonomy(cats, subs);
+    }
+
+    private static void readLongs(ByteBuffer buf, long[] dst, int n) {
+        buf.asLongBuffer().get(dst, 0, n);
+        buf.position(buf.position() + n * Long.BYTES);
+    }
+
+    private static void readInts(ByteBuffer buf, int[] dst, int n) {
+        buf.asIntBuffer().get(dst, 0, n);
+        buf.position(buf.position() + n * Integer.BYTES);
+    }
+
     public static final class Bundle {
         public final MonthlyLedger ledger;
         public final CategoryTaxonomy taxonomy;
+        /**
+         * 行号 -> 稳定行 ID（日志按 ID 引用行）；未回放日志时即行号本身
+         */
+        public final long[] rowIds;
+        public final long nextRowId;
+        /**
+         * 所读快照的指纹与已回放日志的有效长度；未经 load 构造时为 null / 0
+         */
+        public final Snapshot snapshot;
+        public final long journalLength;
 
         public Bundle(MonthlyLedger l, CategoryTaxonomy t) {
+            this(l, t, identityIds(l.size()), l.size(), null, 0);
+        }
+
+        Bundle(MonthlyLedger l, CategoryTaxonomy t, long[] rowIds, long nextRowId, Snapshot snapshot, long journalLength) {
             this.ledger = l;
             this.taxonomy = t;
+            this.rowIds = rowIds;
+            this.nextRowId = nextRowId;
+            this.snapshot = snapshot;
+            this.journalLength = journalLength;
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2025 SpCo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package top.spco.cashflow.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 账本的追加式编辑日志（与 .cflg 同目录的 “*.cflg.journal”）。
+ * <p>
+ * 文件头记录所依附快照的长度与 CRC32；快照被整体重写后旧日志自动失效。
+ * 每条记录为 [int 长度][载荷][int CRC32]，按稳定行 ID 描述新增/修改/删除；
+ * 快照中的行 ID 即其行号，新增行的 ID 由写入方分配。尾部写到一半的记录在回放时被忽略。
+ */
+public final class LedgerJournal {
+    private static final int MAGIC = 0x4D4C4A31; // 'MLJ1'
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = Integer.BYTES * 3 + Long.BYTES;
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_UPDATE = 2;
+    private static final byte OP_DELETE = 3;
+
+    private LedgerJournal() {
+    }
+
+    public sealed interface Op permits Add, Update, Delete {
+        long id();
+    }
+
+    public record Add(long id, long timestampMs, long amountCents, String category, String subCategory,
+                      String note) implements Op {
+    }
+
+    public record Update(long id, long timestampMs, long amountCents, String category, String subCategory,
+                         String note) implements Op {
+    }
+
+    public record Delete(long id) implements Op {
+    }
+
+    public static File fileFor(File ledgerFile) {
+        return new File(ledgerFile.getPath() + ".journal");
+    }
+
+    public static void delete(File ledgerFile) throws IOException {
+        Files.deleteIfExists(fileFor(ledgerFile).toPath());
+    }
+
+    /**
+     * 追加一批操作并 force() 落盘
+     *
+     * @param base           日志所依附的快照
+     * @param expectedLength 上次回放/追加后的日志长度；0 表示新建日志（覆盖任何残留文件）
+     * @return 追加后的日志长度
+     */
+    public static long append(File ledgerFile, LedgerIO.Snapshot base, long expectedLength, List<? extends Op> ops) throws IOException {
+        if (ops.isEmpty()) return expectedLength;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * ops.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        boolean fresh = expectedLength < HEADER_BYTES;
+        if (fresh) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(base.length());
+            out.writeInt(base.crc());
+        }
+        for (Op op : ops) writeRecord(out, op);
+        out.flush();
+
+        Path path = fileFor(ledgerFile).toPath();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long pos = fresh ? 0 : expectedLength;
+            // 丢弃上次崩溃留下的残缺尾记录（或新建时的残留内容）
+            if (ch.size() != pos) ch.truncate(pos);
+            ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+            while (buf.hasRemaining()) pos += ch.write(buf, pos);
+            ch.force(true);
+        }
+        if (fresh) LedgerIO.syncDirectory(path.toAbsolutePath().getParent());
+        return (fresh ? 0 : expectedLength) + bytes.size();
+    }
+
+    private static void writeRecord(DataOutputStream out, Op op) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        DataOutputStream p = new DataOutputStream(payload);
+        switch (op) {
+            case Add a -> {
+                p.writeByte(OP_ADD);
+                writeRow(p, a.id(), a.timestampMs(), a.amountCents(), a.category(), a.subCategory(), a.note());
+            }
+            case Update u -> {
+                p.writeByte(OP_UPDATE);
+                writeRow(p, u.id(), u.timestampMs(), u.amountCents(), u.category(), u.subCategory(), u.note());
+            }
+            case Delete d -> {
+                p.writeByte(OP_DELETE);
+                p.writeLong(d.id());
+            }
+        }
+        p.flush();
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void writeRow(DataOutputStream p, long id, long ts, long amount, String cat, String sub, String note) throws IOException {
+        p.writeLong(id);
+        p.writeLong(ts);
+        p.writeLong(amount);
+        p.writeUTF(cat);
+        p.writeUTF(sub);
+        byte[] n = (note == null) ? new byte[0] : note.getBytes(StandardCharsets.UTF_8);
+        p.writeInt(n.length);
+        p.write(n);
+    }
+
+    /**
+     * 回放结果：回放后的账本（已剔除删除的行）、行号到稳定 ID 的映射、下一个可用 ID 与日志有效长度
+     */
+    record Replay(MonthlyLedger ledger, long[] rowIds, long nextRowId, long length) {
+    }
+
+    /**
+     * 在刚加载的快照上回放日志；无日志或日志不属于该快照时返回 null。
+     * 新出现的类别/子类会追加到 taxonomy。
+     */
+    static Replay replay(File ledgerFile, LedgerIO.Snapshot base, MonthlyLedger ledger, CategoryTaxonomy taxonomy) throws IOException {
+        File jf = fileFor(ledgerFile);
+        if (!jf.isFile()) return null;
+        byte[] bytes = Files.readAllBytes(jf.toPath());
+        if (bytes.length < HEADER_BYTES) return null; // 新建日志时崩溃，头都没写完
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        if (buf.getInt() != MAGIC) throw new IOException("非法日志文件头：" + jf.getName());
+        int ver = buf.getInt();
+        if (ver != VERSION) throw new IOException("不支持的日志版本: " + ver);
+        if (buf.getLong() != base.length() || buf.getInt() != base.crc()) return null; // 快照已被重写，日志过期
+
+        int snapshotRows = ledger.size();
+        Map<Long, Integer> addedRows = new HashMap<>();
+        long nextId = snapshotRows;
+        long valid = buf.position();
+        CRC32 crc = new CRC32();
+        while (buf.remaining() >= Integer.BYTES) {
+            int len = buf.getInt();
+            if (len <= 0 || (long) len + Integer.BYTES > buf.remaining()) break; // 残缺的尾记录
+            int start = buf.position();
+            crc.reset();
+            crc.update(bytes, start, len);
+            buf.position(start + len);
+            if (buf.getInt() != (int) crc.getValue()) break;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, start, len));
+            byte op = in.readByte();
+            long id = in.readLong();
+            Integer row = (id >= 0 && id < snapshotRows) ? Integer.valueOf((int) id) : addedRows.get(id);
+            switch (op) {
+                case OP_ADD -> {
+                    if (row != null) throw new IOException("日志损坏：重复的行 ID " + id);
+                    addedRows.put(id, addRow(in, ledger, taxonomy));
+                    nextId = Math.max(nextId, id + 1);
+                }
+                case OP_UPDATE -> {
+                    if (row == null || !ledger.isLive(row)) throw new IOException("日志损坏：修改了不存在的行 ID " + id);
+                    long ts = in.readLong();
+                    long amount = in.readLong();
+                    int cat = taxonomy.categoryIdOf(in.readUTF());
+                    int sub = taxonomy.subIdOf(cat, in.readUTF());
+                    ledger.set(row, ts, amount, cat, sub, readNote(in));
+                }
+                case OP_DELETE -> {
+                    if (row == null || !ledger.isLive(row)) throw new IOException("日志损坏：删除了不存在的行 ID " + id);
+                    ledger.delete(row);
+                }
+                default -> throw new IOException("日志损坏：未知操作 " + op);
+            }
+            valid = buf.position();
+        }
+
+        long[] ids = new long[ledger.size()];
+        for (int r = 0; r < snapshotRows; r++) ids[r] = r;
+        for (Map.Entry<Long, Integer> e : addedRows.entrySet()) ids[e.getValue()] = e.getKey();
+        if (ledger.deletedRows() == 0) return new Replay(ledger, ids, nextId, valid);
+
+        int[] old = ledger.compact();
+        long[] liveIds = new long[old.length];
+        for (int r = 0; r < old.length; r++) liveIds[r] = ids[old[r]];
+        return new Replay(ledger, liveIds, nextId, valid);
+    }
+
+    private static int addRow(DataInputStream in, MonthlyLedger ledger, CategoryTaxonomy taxonomy) throws IOException {
+        long ts = in.readLong();
+        long amount = in.readLong();
+        int cat = taxonomy.categoryIdOf(in.readUTF());
+        int sub = taxonomy.subIdOf(cat, in.readUTF());
+        return ledger.add(ts, amount, cat, sub, readNote(in));
+    }
+
+    private static String readNote(DataInputStream in) throws IOException {
+        byte[] n = new byte[in.readInt()];
+        in.readFully(n);
+        return new String(n, StandardCharsets.UTF_8);
+    }
+}
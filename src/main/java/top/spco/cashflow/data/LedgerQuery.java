@@ -0,0 +1,235 @@
+/*
+ * Copyright 2025 SpCo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package top.spco.cashflow.data;
+
+import top.spco.cashflow.util.Amounts;
+import top.spco.cashflow.util.Dates;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/**
+ * 搜索框的结构化查询，空白分隔的若干条件取“与”：
+ * <pre>
+ *   cat:餐饮,交通        类别等于其一（精确匹配名称）
+ *   sub:午饭             子类等于其一
+ *   amount:&lt;-100        金额（元）比较，支持 &lt; &lt;= &gt; &gt;= =，或区间 a..b（闭区间，可省略一端）
+ *   date:2025-09-01..2025-09-15   日期闭区间；也可写单日 2025-09-01 或整月 2025-09
+ *   note:咖啡            备注包含（忽略大小写）
+ *   其它词               全文子串匹配，各词分别匹配后取“与”
+ * </pre>
+ * 输入中没有任何上述条件时，整段文本（含空格）作为一个全文子串，与旧搜索框完全相同；
+ * 值中含空格时用双引号括起。解析结果把时间与金额折算成毫秒/分的闭区间，
+ * 匹配时先比较原始 long 值，再比较类别，最后才做字符串匹配。
+ * <p>
+ * 主界面的搜索框经 {@code SearchIndex} 在条目列表上逐行调用 {@link #matchesColumns}，备注词与全文词由索引自行匹配。
+ */
+public final class LedgerQuery {
+    private long tsFrom = Long.MIN_VALUE, tsTo = Long.MAX_VALUE;
+    private long amountMin = Long.MIN_VALUE, amountMax = Long.MAX_VALUE;
+    private Set<String> categories; // null 表示不限
+    private Set<String> subs;
+    private final List<String> noteTerms = new ArrayList<>(); // 已小写
+    private final List<String> textTerms = new ArrayList<>(); // 已小写
+
+    private LedgerQuery() {
+    }
+
+    /**
+     * 解析查询串；语法错误抛 IllegalArgumentException（消息可直接展示给用户）
+     */
+    public static LedgerQuery parse(String text) {
+        List<String> tokens = tokenize(text == null ? "" : text);
+        if (tokens.stream().noneMatch(t -> KEYS.contains(keyOf(t)))) return text(text);
+        LedgerQuery q = new LedgerQuery();
+        for (String token : tokens) {
+            int colon = token.indexOf(':');
+            String key = keyOf(token);
+            String value = (colon > 0) ? unquote(token.substring(colon + 1)) : "";
+            switch (key) {
+                case "cat" -> q.categories = intersect(q.categories, names(value, token));
+                case "sub" -> q.subs = intersect(q.subs, names(value, token));
+                case "amount" -> q.parseAmount(value, token);
+                case "date" -> q.parseDate(value, token);
+                case "note" -> {
+                    if (!value.isEmpty()) q.noteTerms.add(value.toLowerCase());
+                }
+                default -> q.textTerms.add(unquote(token).toLowerCase());
+            }
+        }
+        return q;
+    }
+
+    /**
+     * 把整段文本当作一个全文词（不解析条件），即旧搜索框的语义
+     */
+    public static LedgerQuery text(String text) {
+        LedgerQuery q = new LedgerQuery();
+        String t = (text == null) ? "" : text.trim().toLowerCase();
+        if (!t.isEmpty()) q.textTerms.add(t);
+        return q;
+    }
+
+    /**
+     * 是否没有任何条件（匹配全部）
+     */
+    public boolean isEmpty() {
+        return tsFrom == Long.MIN_VALUE && tsTo == Long.MAX_VALUE
+                && amountMin == Long.MIN_VALUE && amountMax == Long.MAX_VALUE
+                && categories == null && subs == null && noteTerms.isEmpty() && textTerms.isEmpty();
+    }
+
+    /**
+     * 备注须包含的词（已小写）
+     */
+    public List<String> noteTerms() {
+        return Collections.unmodifiableList(noteTerms);
+    }
+
+    /**
+     * 不带键的全文词（已小写），由调用方按旧搜索语义匹配
+     */
+    public List<String> textTerms() {
+        return Collections.unmodifiableList(textTerms);
+    }
+
+    /**
+     * 只看时间、金额两列的前置判定
+     */
+    public boolean matchesPrimitives(long timestampMs, long amountCents) {
+        return timestampMs >= tsFrom && timestampMs <= tsTo && amountCents >= amountMin && amountCents <= amountMax;
+    }
+
+    /**
+     * 时间、金额、类别、子类四列的判定（备注词与全文词由调用方按各自的字符串匹配）
+     */
+    public boolean matchesColumns(long timestampMs, long amountCents, String category, String subCategory) {
+        if (!matchesPrimitives(timestampMs, amountCents)) return false;
+        if (categories != null && !categories.contains(category)) return false;
+        return subs == null || subs.contains(subCategory);
+    }
+
+    // ---------- 解析 ----------
+
+    private void parseAmount(String v, String token) {
+        try {
+            int range = v.indexOf("..");
+            if (range >= 0) {
+                String lo = v.substring(0, range).trim(), hi = v.substring(range + 2).trim();
+                if (!lo.isEmpty()) amountMin = Math.max(amountMin, Amounts.yuanToCents(lo));
+                if (!hi.isEmpty()) amountMax = Math.min(amountMax, Amounts.yuanToCents(hi));
+            } else if (v.startsWith("<=")) {
+                amountMax = Math.min(amountMax, Amounts.yuanToCents(v.substring(2)));
+            } else if (v.startsWith(">=")) {
+                amountMin = Math.max(amountMin, Amounts.yuanToCents(v.substring(2)));
+            } else if (v.startsWith("<")) {
+                amountMax = Math.min(amountMax, Amounts.yuanToCents(v.substring(1)) - 1);
+            } else if (v.startsWith(">")) {
+                amountMin = Math.max(amountMin, Amounts.yuanToCents(v.substring(1)) + 1);
+            } else {
+                long c = Amounts.yuanToCents(v.startsWith("=") ? v.substring(1) : v);
+                amountMin = Math.max(amountMin, c);
+                amountMax = Math.min(amountMax, c);
+            }
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw new IllegalArgumentException("无法解析金额条件：" + token);
+        }
+    }
+
+    private void parseDate(String v, String token) {
+        try {
+            int range = v.indexOf("..");
+            if (range >= 0) {
+                String lo = v.substring(0, range).trim(), hi = v.substring(range + 2).trim();
+                if (!lo.isEmpty()) tsFrom = Math.max(tsFrom, startOf(lo));
+                if (!hi.isEmpty()) tsTo = Math.min(tsTo, endOf(hi));
+            } else {
+                tsFrom = Math.max(tsFrom, startOf(v));
+                tsTo = Math.min(tsTo, endOf(v));
+            }
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("无法解析日期条件：" + token + "（格式如 2025-09-01 或 2025-09）");
+        }
+    }
+
+    /**
+     * 该日（或该月首日）零点的毫秒
+     */
+    private static long startOf(String s) {
+        return Dates.startOfDayMillis(s.length() <= 7 ? YearMonth.parse(s).atDay(1) : LocalDate.parse(s));
+    }
+
+    /**
+     * 该日（或该月末日）最后一毫秒
+     */
+    private static long endOf(String s) {
+        LocalDate last = (s.length() <= 7) ? YearMonth.parse(s).atEndOfMonth() : LocalDate.parse(s);
+        return Dates.startOfDayMillis(last.plusDays(1)) - 1;
+    }
+
+    private static final Set<String> KEYS = Set.of("cat", "sub", "amount", "date", "note");
+
+    private static String keyOf(String token) {
+        int colon = token.indexOf(':');
+        return (colon > 0) ? token.substring(0, colon).toLowerCase(Locale.ROOT) : "";
+    }
+
+    private static Set<String> names(String value, String token) {
+        Set<String> out = new HashSet<>();
+        for (String s : value.split("[,，]")) {
+            String t = s.trim();
+            if (!t.isEmpty()) out.add(t);
+        }
+        if (out.isEmpty()) throw new IllegalArgumentException("条件缺少名称：" + token);
+        return out;
+    }
+
+    /**
+     * 同一键写多次时取交集
+     */
+    private static Set<String> intersect(Set<String> prev, Set<String> next) {
+        if (prev == null) return next;
+        prev.retainAll(next);
+        return prev;
+    }
+
+    /**
+     * 按空白切分，双引号内的空白不切；引号本身保留到 unquote 时去掉
+     */
+    private static List<String> tokenize(String s) {
+        List<String> out = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch == '"') quoted = !quoted;
+            if (!quoted && Character.isWhitespace(ch)) {
+                if (!cur.isEmpty()) out.add(cur.toString());
+                cur.setLength(0);
+            } else {
+                cur.append(ch);
+            }
+        }
+        if (!cur.isEmpty()) out.add(cur.toString());
+        return out;
+    }
+
+    private static String unquote(String s) {
+        return s.replace("\"", "").trim();
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2025 SpCo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package top.spco.cashflow.data;
+
+import java.io.*;
+import java.nio.file.*;
+import java.time.YearMonth;
+import java.util.*;
+
+/**
+ * 多月账本仓库：一个目录下存放若干月度 .cflg 段文件，外加一份月份索引 “store.idx”。
+ * <p>
+ * 索引记录每段的（年、月、文件名、行数、最早/最晚时间戳）以及全部段合并后的分类树，
+ * 查询时只加载涉及的段，且各段的类别/子类 ID 统一映射到这一份共享分类树上。
+ * 段文件本身仍是普通的 MLD2 文件，可以单独用 {@link LedgerIO} 打开编辑；
+ * 索引按段文件（及其编辑日志）的长度与修改时间判断是否过期，过期的段在 open 时重新统计；
+ * 统计优先读取段文件尾部的汇总段（{@link LedgerIO#loadSummary}），缺失或过期时才加载整段。
+ * 同属一个月份的多个文件（如手动备份的副本）只保留先登记的一个（已在索引中的优先，其次按文件名），其余记入 {@link #skippedFiles()}。
+ */
+public final class LedgerStore {
+    public static final String INDEX_NAME = "store.idx";
+    private static final String SEGMENT_EXT = ".cflg";
+
+    private static final int MAGIC = 0x4D4C5331; // 'MLS1'
+    private static final int VERSION = 1;
+
+    /**
+     * 段描述；length/modified/journalLength 用于判断索引是否仍与文件一致
+     */
+    public record Segment(YearMonth yearMonth, String fileName, int rows, long minTs, long maxTs,
+                          long length, long modified, long journalLength) {
+    }
+
+    private final Path dir;
+    private final TreeMap<YearMonth, Segment> segments = new TreeMap<>();
+    private final CategoryTaxonomy taxonomy;
+    private final List<String> skipped = new ArrayList<>();
+    // open 时刚统计过的段的汇总，供 summary 复用
+    private final Map<YearMonth, LedgerIO.Summary> summaries = new HashMap<>();
+    private boolean readOnly;
+
+    private LedgerStore(Path dir, CategoryTaxonomy taxonomy) {
+        this.dir = dir;
+        this.taxonomy = taxonomy;
+    }
+
+    /**
+     * 打开（或新建）仓库目录；索引缺失、损坏或与段文件不一致时自动重建对应部分
+     */
+    public static LedgerStore open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        LedgerStore store = scan(dir);
+        if (store.refresh()) store.writeIndex();
+        return store;
+    }
+
+    /**
+     * 只读打开已有目录：不创建目录、不写索引，也不能 {@link #put}。
+     * 目录里已有索引时照常用它跳过未变化的段，过期的部分只在内存中重新统计
+     */
+    public static LedgerStore openReadOnly(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) throw new NoSuchFileException(dir.toString(), null, "不是目录");
+        LedgerStore store = scan(dir);
+        store.readOnly = true;
+        store.refresh();
+        return store;
+    }
+
+    private static LedgerStore scan(Path dir) {
+        LedgerStore store = readIndex(dir);
+        return (store != null) ? store : new LedgerStore(dir, new CategoryTaxonomy(new ArrayList<>(), new ArrayList<>()));
+    }
+
+    public Path directory() {
+        return dir;
+    }
+
+    /**
+     * 所有段共享的分类树；{@link #month} 等方法返回的账本中的类别 ID 均指向它
+     */
+    public CategoryTaxonomy taxonomy() {
+        return taxonomy;
+    }
+
+    /**
+     * 按年月升序的段列表（只读）
+     */
+    public List<Segment> segments() {
+        return List.copyOf(segments.values());
+    }
+
+    /**
+     * 因与其它文件同属一个月份而被忽略的段文件名
+     */
+    public List<String> skippedFiles() {
+        return List.copyOf(skipped);
+    }
+
+    public boolean contains(YearMonth ym) {
+        return segments.containsKey(ym);
+    }
+
+    /**
+     * 单月的汇总，类别/子类 ID 按返回的（段自带的）分类树解释；不存在返回 null。
+     * 不加载行数据，除非段文件没有可用的汇总段
+     */
+    public LedgerIO.Summary summary(YearMonth ym) throws IOException {
+        Segment s = segments.get(ym);
+        if (s == null) return null;
+        Path file = dir.resolve(s.fileName());
+        LedgerIO.Summary cached = summaries.get(ym);
+        return (cached != null && upToDate(file, s)) ? cached : summarize(file);
+    }
+
+    /**
+     * 加载单月；不存在返回 null
+     */
+    public MonthlyLedger month(YearMonth ym) throws IOException {
+        Segment s = segments.get(ym);
+        return (s == null) ? null : load(s);
+    }
+
+    /**
+     * 加载闭区间 [from, to] 内已有的各月，按年月升序
+     */
+    public List<MonthlyLedger> range(YearMonth from, YearMonth to) throws IOException {
+        List<MonthlyLedger> out = new ArrayList<>();
+        for (Segment s : segments.subMap(from, true, to, true).values()) out.add(load(s));
+        return out;
+    }
+
+    /**
+     * 加载与时间区间 [fromMs, toMs] 有交集的段（按索引中的最早/最晚时间戳筛选，不打开无关段）
+     */
+    public List<MonthlyLedger> overlapping(long fromMs, long toMs) throws IOException {
+        List<MonthlyLedger> out = new ArrayList<>();
+        for (Segment s : segments.values()) {
+            if (s.rows() > 0 && s.maxTs() >= fromMs && s.minTs() <= toMs) out.add(load(s));
+        }
+        return out;
+    }
+
+    /**
+     * 写入（覆盖）某月的段；ledger 中的类别 ID 按给定 taxonomy 解释
+     */
+    public void put(MonthlyLedger ledger, CategoryTaxonomy ledgerTaxonomy) throws IOException {
+        if (readOnly) throw new IllegalStateException("仓库以只读方式打开");
+        YearMonth ym = YearMonth.of(ledger.year(), ledger.month());
+        Segment old = segments.get(ym);
+        String name = (old != null) ? old.fileName() : String.format("账本-%s%s", ym, SEGMENT_EXT);
+        Path file = dir.resolve(name);
+        LedgerIO.save(ledger, ledgerTaxonomy, file.toFile());
+        mergeTaxonomy(ledgerTaxonomy);
+        segments.put(ym, describe(file, ym, LedgerAggregate.of(ledger, ledgerTaxonomy)));
+        summaries.remove(ym);
+        writeIndex();
+    }
+
+    // ---------- 加载与 ID 映射 ----------
+
+    private MonthlyLedger load(Segment s) throws IOException {
+        LedgerIO.Bundle b = LedgerIO.load(dir.resolve(s.fileName()).toFile());
+        remap(b.ledger, b.taxonomy);
+        return b.ledger;
+    }
+
+    /**
+     * 把段内类别/子类 ID 原地改写为共享分类树的 ID（段自带的分类树随即丢弃）；未分类的负 ID 保持不变
+     */
+    private void remap(MonthlyLedger ledger, CategoryTaxonomy local) {
+        int C = local.categoryCount();
+        int[] catMap = new int[C];
+        int[][] subMap = new int[C][];
+        for (int c = 0; c < C; c++) {
+            catMap[c] = taxonomy.categoryIdOf(local.categoryName(c));
+            subMap[c] = new int[local.subCount(c)];
+            for (int s = 0; s < subMap[c].length; s++) subMap[c][s] = taxonomy.subIdOf(catMap[c], local.subName(c, s));
+        }
+        for (int i = 0; i < ledger.size; i++) {
+            int c = ledger.cat[i];
+            if (c < 0) continue;
+            if (ledger.subcat[i] >= 0) ledger.subcat[i] = subMap[c][ledger.subcat[i]];
+            ledger.cat[i] = catMap[c];
+        }
+    }
+
+    private void mergeTaxonomy(CategoryTaxonomy local) {
+        for (int c = 0; c < local.categoryCount(); c++) {
+            int shared = taxonomy.categoryIdOf(local.categoryName(c));
+            for (int s = 0; s < local.subCount(c); s++) taxonomy.subIdOf(shared, local.subName(c, s));
+        }
+    }
+
+    // ---------- 索引维护 ----------
+
+    /**
+     * 与目录内容对账：新增/变化的段重新统计，消失的段移除；与已有段同月的文件跳过。返回索引是否有变化
+     */
+    private boolean refresh() throws IOException {
+        Set<String> present = new HashSet<>();
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + SEGMENT_EXT)) {
+            for (Path p : ds) {
+                if (Files.isRegularFile(p)) {
+                    files.add(p);
+                    present.add(p.getFileName().toString());
+                }
+            }
+        }
+        files.sort(Comparator.comparing(p -> p.getFileName().toString()));
+        // 先移除消失的段，免得它们占着月份把新文件挤掉
+        boolean changed = segments.values().removeIf(s -> !present.contains(s.fileName()));
+        Map<String, Segment> byName = new HashMap<>();
+        for (Segment s : segments.values()) byName.put(s.fileName(), s);
+
+        skipped.clear();
+        for (Path p : files) {
+            String name = p.getFileName().toString();
+            Segment known = byName.get(name);
+            if (known != null && upToDate(p, known)) continue;
+
+            LedgerIO.Summary summary = summarize(p);
+            YearMonth ym = summary.yearMonth();
+            Segment other = segments.get(ym);
+            if (known != null) segments.remove(known.yearMonth());
+            if (other != null && !other.fileName().equals(name)) {
+                skipped.add(name);
+                changed |= known != null;
+                continue;
+            }
+            mergeTaxonomy(summary.taxonomy());
+            segments.put(ym, describe(p, ym, summary.aggregate()));
+            summaries.put(ym, summary);
+            changed = true;
+        }
+        summaries.keySet().retainAll(segments.keySet());
+        return changed;
+    }
+
+    private static boolean upToDate(Path file, Segment s) throws IOException {
+        return Files.size(file) == s.length()
+                && Files.getLastModifiedTime(file).toMillis() == s.modified()
+                && journalLength(file) == s.journalLength();
+    }
+
+    private static long journalLength(Path file) {
+        File j = LedgerJournal.fileFor(file.toFile());
+        return j.isFile() ? j.length() : 0;
+    }
+
+    /**
+     * 优先读尾部汇总段；没有（旧文件、有编辑日志等）时加载整段现算
+     */
+    private static LedgerIO.Summary summarize(Path file) throws IOException {
+        LedgerIO.Summary summary = LedgerIO.loadSummary(file.toFile());
+        if (summary != null) return summary;
+        LedgerIO.Bundle b = LedgerIO.load(file.toFile());
+        return new LedgerIO.Summary(YearMonth.of(b.ledger.year(), b.ledger.month()), b.taxonomy, LedgerAggregate.of(b.ledger, b.taxonomy));
+    }
+
+    private static Segment describe(Path file, YearMonth ym, LedgerAggregate a) throws IOException {
+        boolean empty = a.rows() == 0;
+        return new Segment(ym, file.getFileName().toString(), (int) a.rows(), empty ? 0 : a.minTimestamp(), empty ? 0 : a.maxTimestamp(),
+                Files.size(file), Files.getLastModifiedTime(file).toMillis(), journalLength(file));
+    }
+
+    /**
+     * 读取索引；不存在或无法解析时返回 null（随后整体重建）
+     */
+    private static LedgerStore readIndex(Path dir) {
+        Path idx = dir.resolve(INDEX_NAME);
+        if (!Files.isRegularFile(idx)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(idx)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            int n = in.readInt();
+            List<Segment> list = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                YearMonth ym = YearMonth.of(in.readInt(), in.readInt());
+                list.add(new Segment(ym, in.readUTF(), in.readInt(), in.readLong(), in.readLong(),
+                        in.readLong(), in.readLong(), in.readLong()));
+            }
+            CategoryTaxonomy taxonomy = in.readBoolean() ? LedgerIO.readTaxonomy(in)
+                    : new CategoryTaxonomy(new ArrayList<>(), new ArrayList<>());
+            LedgerStore store = new LedgerStore(dir, taxonomy);
+            for (Segment s : list) store.segments.put(s.yearMonth(), s);
+            return store;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 索引只是缓存，丢失可重建：写临时文件后替换，不做 fsync
+     */
+    private void writeIndex() throws IOException {
+        Path idx = dir.resolve(INDEX_NAME);
+        Path tmp = dir.resolve(INDEX_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(segments.size());
+            for (Segment s : segments.values()) {
+                out.writeInt(s.yearMonth().getYear());
+                out.writeInt(s.yearMonth().getMonthValue());
+                out.writeUTF(s.fileName());
+                out.writeInt(s.rows());
+                out.writeLong(s.minTs());
+                out.writeLong(s.maxTs());
+                out.writeLong(s.length());
+                out.writeLong(s.modified());
+                out.writeLong(s.journalLength());
+            }
+            out.writeBoolean(taxonomy.categoryCount() > 0);
+            if (taxonomy.categoryCount() > 0) out.write(LedgerIO.encodeTaxonomy(taxonomy));
+        }
+        Files.move(tmp, idx, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -18,6 +18,7 @@ package top.spco.cashflow.data;
 import java.nio.charset.StandardCharsets;
 import java.time.YearMonth;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.NoSuchElementException;
 import java.util.function.IntPredicate;
 
@@ -46,10 +47,37 @@ public final class MonthlyLedger {
     byte[] noteBlob;
     int noteSize;
 
-    // head[catId] = 链表首行index 或 -1； next[i] = 同分类下的下一行index 或 -1
-    int[] catHead;
-    int[] catNext;
+    // 已删除的行（墓碑）；null 表示没有。行号在 compact() 之前保持不变，遍历与汇总跳过这些行
+    BitSet deleted;
+    private int deletedCount;
+    // blob 中已不被任何存活行引用的字节数（改写或删除留下的空洞），compact() 时回收
+    private int garbageNoteBytes;
+
+    // 分类倒排索引（CSR，需 enableCategoryIndex）：前 indexedRows 行按分类连续存放，
+    // 类别 c 的行号（升序）为 catPostings[catPostStart[c] .. catPostStart[c + 1])，
+    // (c, s) 的行号为 subPostings[subPostStart[k] .. subPostStart[k + 1])，k = subPostBase[c] + s。
+    // 之后追加的行不入索引，遍历时顺序补扫；补扫部分过长或行号整体变动时在下次查询前回建
     boolean categoryIndexEnabled = false;
+    private int indexedRows = -1; // -1 表示需要回建
+    private int[] catPostStart;
+    private int[] catPostings;
+    private int[] subPostBase;
+    private int[] subPostStart;
+    private int[] subPostings;
+
+    // 各行当前是否按时间戳非降序排列（随写入维护，并保存在文件尾部的行序段中）；成立时时间区间查询走二分
+    boolean sortedByTime = true;
+    // 为 true 时 add 把乱序的行插入到正确位置（插入归并），使 sortedByTime 始终成立
+    private boolean keepSortedByTime = false;
+
+    // 金额累计索引（树状数组，需 enableAmountIndex）：amountTree 以行号+1 为下标；
+    // catRows[c] 为类别 c 的行号（升序），catTree[c] 以其在 catRows[c] 中的次序+1 为下标
+    boolean amountIndexEnabled = false;
+    private boolean amountIndexStale = true;
+    private long[] amountTree;
+    private int[][] catRows;
+    private int[] catRowCount;
+    private long[][] catTree;
 
     public MonthlyLedger(int year, int month, int initialCapacity, int initialNoteBlob) {
         if (month < 1 || month > 12) throw new IllegalArgumentException("month must be 1..12");
@@ -87,17 +115,28 @@ public final class MonthlyLedger {
     }
 
     /**
-     * 启用按分类的倒排链表索引（若分类空间很大，可在外侧控制最大catId以配置数组大小）
+     * 启用按分类（及分类+子类）的倒排索引；分类空间随数据自动扩展，首次查询时建立
      */
-    public void enableCategoryIndex(int maxCategoryIdExclusive) {
-        this.catHead = new int[maxCategoryIdExclusive];
-        Arrays.fill(this.catHead, -1);
-        this.catNext = new int[Math.max(8, capacity)];
-        Arrays.fill(this.catNext, -1);
+    public void enableCategoryIndex() {
         this.categoryIndexEnabled = true;
+        this.indexedRows = -1;
+    }
+
+    /**
+     * @deprecated 索引按实际出现的分类自动扩展，参数不再需要；改用 {@link #enableCategoryIndex()}
+     */
+    @Deprecated
+    public void enableCategoryIndex(int maxCategoryIdExclusive) {
+        enableCategoryIndex();
+    }
 
-        // 现有数据回建索引
-        for (int i = 0; i < size; i++) linkCategoryIndex(i);
+    /**
+     * 启用金额累计索引：账本按时间排序时 {@link #sumAmount} 为两次二分加两次树状数组前缀和。
+     * 按时间顺序追加、原地改金额时增量维护；插入到中间、重排或改分类时只标记过期，下次查询时回建
+     */
+    public void enableAmountIndex() {
+        this.amountIndexEnabled = true;
+        this.amountIndexStale = true;
     }
 
     private void ensureRowCapacity() {
@@ -109,10 +148,6 @@ public final class MonthlyLedger {
         subcat = Arrays.copyOf(subcat, newCap);
         noteOff = Arrays.copyOf(noteOff, newCap);
         noteLen = Arrays.copyOf(noteLen, newCap);
-        if (categoryIndexEnabled) {
-            catNext = Arrays.copyOf(catNext, newCap);
-            Arrays.fill(catNext, capacity, newCap, -1);
-        }
         capacity = newCap;
     }
 
@@ -125,7 +160,20 @@ public final class MonthlyLedger {
     }
 
     /**
-     * 追加一条记录（content 可为 null 或 ""）
+     * 是否保持按时间排序：开启时先把现有行排好序，之后 add 把早于末行的记录插入到
+     * 同一时间戳的最后一行之后（返回值即插入位置，其后各行行号顺延）
+     */
+    public void setKeepSortedByTime(boolean keep) {
+        if (keep && !sortedByTime) sortByTime();
+        keepSortedByTime = keep;
+    }
+
+    public boolean isSortedByTime() {
+        return sortedByTime;
+    }
+
+    /**
+     * 追加一条记录（content 可为 null 或 ""）；保持排序模式下按时间插入，返回所在行号
      */
     public int add(long epochMillis, long amountInCents, int categoryId, int subCategoryId, String content) {
         ensureRowCapacity();
@@ -138,6 +186,10 @@ public final class MonthlyLedger {
             noteSize += len;
         }
 
+        boolean outOfOrder = size > 0 && epochMillis < ts[size - 1];
+        if (outOfOrder && keepSortedByTime) return insertAt(upperBound(epochMillis), epochMillis, amountInCents, categoryId, subCategoryId, off, len);
+        if (outOfOrder) sortedByTime = false;
+
         int row = size++;
         ts[row] = epochMillis;
         amount[row] = amountInCents;
@@ -146,20 +198,254 @@ public final class MonthlyLedger {
         noteOff[row] = off;
         noteLen[row] = len;
 
-        if (categoryIndexEnabled) linkCategoryIndex(row);
+        appendAmountIndex(row);
         return row;
     }
 
-    private void linkCategoryIndex(int row) {
-        int c = cat[row];
-        // 单向头插
-        int head = catHead[c < catHead.length ? c : 0]; // 粗暴防御：越界分类都挂到0类上（也可以选择抛异常/扩容catHead）
-        catNext[row] = head;
-        if (c < catHead.length) {
-            catHead[c] = row;
-        } else {
-            catHead[0] = row; // 参见上行注释
+    /**
+     * 在 pos 处插入一行，其后的行整体后移（六列各一次 arraycopy）
+     */
+    private int insertAt(int pos, long epochMillis, long amountInCents, int categoryId, int subCategoryId, int off, int len) {
+        int tail = size - pos;
+        System.arraycopy(ts, pos, ts, pos + 1, tail);
+        System.arraycopy(amount, pos, amount, pos + 1, tail);
+        System.arraycopy(cat, pos, cat, pos + 1, tail);
+        System.arraycopy(subcat, pos, subcat, pos + 1, tail);
+        System.arraycopy(noteOff, pos, noteOff, pos + 1, tail);
+        System.arraycopy(noteLen, pos, noteLen, pos + 1, tail);
+        ts[pos] = epochMillis;
+        amount[pos] = amountInCents;
+        cat[pos] = categoryId;
+        subcat[pos] = subCategoryId;
+        noteOff[pos] = off;
+        noteLen[pos] = len;
+        size++;
+        if (deleted != null) {
+            BitSet shifted = new BitSet(size);
+            for (int i = deleted.nextSetBit(0); i >= 0; i = deleted.nextSetBit(i + 1)) shifted.set(i < pos ? i : i + 1);
+            deleted = shifted;
+        }
+        // 行号整体后移，索引里的行号全部失效
+        indexedRows = -1;
+        amountIndexStale = true;
+        return pos;
+    }
+
+    /**
+     * 把各行按时间戳稳定排序后就地重排，返回 old[newRow] = 原行号
+     */
+    public int[] sortByTime() {
+        int[] order = timeOrder();
+        if (sortedByTime) return order;
+        ts = gather(ts, order);
+        amount = gather(amount, order);
+        cat = gather(cat, order);
+        subcat = gather(subcat, order);
+        noteOff = gather(noteOff, order);
+        noteLen = gather(noteLen, order);
+        if (deleted != null) {
+            BitSet moved = new BitSet(size);
+            for (int i = 0; i < size; i++) {
+                if (deleted.get(order[i])) moved.set(i);
+            }
+            deleted = moved;
+        }
+        sortedByTime = true;
+        indexedRows = -1;
+        amountIndexStale = true;
+        return order;
+    }
+
+    private long[] gather(long[] col, int[] order) {
+        long[] out = new long[capacity];
+        for (int i = 0; i < size; i++) out[i] = col[order[i]];
+        return out;
+    }
+
+    private int[] gather(int[] col, int[] order) {
+        int[] out = new int[capacity];
+        for (int i = 0; i < size; i++) out[i] = col[order[i]];
+        return out;
+    }
+
+    /**
+     * 原地改写一行，返回改写后的行号。备注与原来相同时沿用原字节；否则新备注追加到 blob 末尾，
+     * 旧备注字节留作空洞，由 {@link #compact()} 回收。
+     * 行号通常不变；保持排序模式下改动时间使该行乱序时，重新排序，该行及其间的行号随之变化
+     */
+    public int set(int row, long epochMillis, long amountInCents, int categoryId, int subCategoryId, String content) {
+        rangeCheck(row);
+        byte[] bytes = (content == null || content.isEmpty()) ? null : content.getBytes(StandardCharsets.UTF_8);
+        int len = (bytes == null) ? 0 : bytes.length;
+        int off = noteOff[row];
+        if (len != noteLen[row] || !Arrays.equals(noteBlob, off, off + len, bytes == null ? new byte[0] : bytes, 0, len)) {
+            garbageNoteBytes += noteLen[row];
+            off = noteSize;
+            if (len > 0) {
+                ensureNoteCapacity(len);
+                System.arraycopy(bytes, 0, noteBlob, noteSize, len);
+                noteSize += len;
+            }
         }
+        boolean recategorized = cat[row] != categoryId;
+        boolean subRecategorized = subcat[row] != subCategoryId;
+        if ((row > 0 && epochMillis < ts[row - 1]) || (row < size - 1 && epochMillis > ts[row + 1])) sortedByTime = false;
+        if (recategorized) amountIndexStale = true;
+        else updateAmountIndex(row, amountInCents - amount[row]);
+        ts[row] = epochMillis;
+        amount[row] = amountInCents;
+        cat[row] = categoryId;
+        subcat[row] = subCategoryId;
+        noteOff[row] = off;
+        noteLen[row] = len;
+        // 已入索引的行改了分类或子类：下次查询前回建
+        if (row < indexedRows && (recategorized || subRecategorized)) indexedRows = -1;
+        return restoreOrder(row);
+    }
+
+    /**
+     * 保持排序模式下若 sortedByTime 被打破，立即重新排序（几乎有序时归并基本只做比较），返回 row 的新行号
+     */
+    private int restoreOrder(int row) {
+        if (!keepSortedByTime || sortedByTime) return row;
+        int[] old = sortByTime();
+        for (int k = 0; k < old.length; k++) {
+            if (old[k] == row) return k;
+        }
+        throw new IllegalStateException("row " + row);
+    }
+
+    /**
+     * 删除一行：只打墓碑，行号不变，直到 {@link #compact()}
+     */
+    public void delete(int row) {
+        rangeCheck(row);
+        if (deleted == null) deleted = new BitSet(size);
+        deleted.set(row);
+        deletedCount++;
+        garbageNoteBytes += noteLen[row];
+        updateAmountIndex(row, -amount[row]);
+    }
+
+    /**
+     * 行号在范围内且未被删除
+     */
+    public boolean isLive(int row) {
+        return row >= 0 && row < size && (deleted == null || !deleted.get(row));
+    }
+
+    /**
+     * 存活的行数（size() 还包括已删除、尚未 compact 的行）
+     */
+    public int liveCount() {
+        return size - deletedCount;
+    }
+
+    public int deletedRows() {
+        return deletedCount;
+    }
+
+    public int garbageNoteBytes() {
+        return garbageNoteBytes;
+    }
+
+    /**
+     * 去掉已删除的行并按行序重写备注 blob（丢弃空洞），各列紧凑排列；返回 old[newRow] = 原行号。
+     * 行间相对顺序不变，因此时间排序状态保持不变；分类与金额索引在下次查询前回建
+     */
+    public int[] compact() {
+        int live = liveCount();
+        int[] old = new int[live];
+        byte[] blob = new byte[Math.max(128, noteSize - garbageNoteBytes)];
+        int blobSize = 0;
+        for (int i = 0, k = 0; i < size; i++) {
+            if (deleted != null && deleted.get(i)) continue;
+            old[k] = i;
+            ts[k] = ts[i];
+            amount[k] = amount[i];
+            cat[k] = cat[i];
+            subcat[k] = subcat[i];
+            int len = noteLen[i];
+            System.arraycopy(noteBlob, noteOff[i], blob, blobSize, len);
+            noteOff[k] = blobSize;
+            noteLen[k] = len;
+            blobSize += len;
+            k++;
+        }
+        size = live;
+        noteBlob = blob;
+        noteSize = blobSize;
+        deleted = null;
+        deletedCount = 0;
+        garbageNoteBytes = 0;
+        indexedRows = -1;
+        amountIndexStale = true;
+        return old;
+    }
+
+    /**
+     * 从另一账本按原始字节复制一行（备注不经解码），返回新行号（保持排序模式下为排序后的位置）
+     */
+    int copyRowFrom(MonthlyLedger src, int row) {
+        src.rangeCheck(row);
+        ensureRowCapacity();
+        int len = src.noteLen[row];
+        int off = noteSize;
+        if (len > 0) {
+            ensureNoteCapacity(len);
+            System.arraycopy(src.noteBlob, src.noteOff[row], noteBlob, noteSize, len);
+            noteSize += len;
+        }
+        if (size > 0 && src.ts[row] < ts[size - 1]) sortedByTime = false;
+        int r = size++;
+        ts[r] = src.ts[row];
+        amount[r] = src.amount[row];
+        cat[r] = src.cat[row];
+        subcat[r] = src.subcat[row];
+        noteOff[r] = off;
+        noteLen[r] = len;
+        appendAmountIndex(r);
+        return restoreOrder(r);
+    }
+
+    /**
+     * 需要时按计数排序回建 CSR 索引，O(行数 + 分类数 + 子类数)；ID 为负的行不入索引
+     */
+    private void ensureCategoryIndex() {
+        if (indexedRows >= 0 && size - indexedRows <= Math.max(64, indexedRows >>> 3)) return;
+        int n = size;
+        int C = 0;
+        for (int i = 0; i < n; i++) C = Math.max(C, cat[i] + 1);
+        int[] subCount = new int[C];
+        for (int i = 0; i < n; i++) {
+            int c = cat[i];
+            if (c >= 0) subCount[c] = Math.max(subCount[c], subcat[i] + 1);
+        }
+        subPostBase = new int[C + 1];
+        for (int c = 0; c < C; c++) subPostBase[c + 1] = subPostBase[c] + subCount[c];
+
+        catPostStart = new int[C + 1];
+        subPostStart = new int[subPostBase[C] + 1];
+        for (int i = 0; i < n; i++) {
+            int c = cat[i];
+            if (c < 0) continue;
+            catPostStart[c + 1]++;
+            if (subcat[i] >= 0) subPostStart[subPostBase[c] + subcat[i] + 1]++;
+        }
+        for (int c = 0; c < C; c++) catPostStart[c + 1] += catPostStart[c];
+        for (int k = 0; k + 1 < subPostStart.length; k++) subPostStart[k + 1] += subPostStart[k];
+
+        catPostings = new int[catPostStart[C]];
+        subPostings = new int[subPostStart[subPostStart.length - 1]];
+        int[] catFill = Arrays.copyOf(catPostStart, C);
+        int[] subFill = Arrays.copyOf(subPostStart, subPostStart.length - 1);
+        for (int i = 0; i < n; i++) {
+            int c = cat[i];
+            if (c < 0) continue;
+            catPostings[catFill[c]++] = i;
+            if (subcat[i] >= 0) subPostings[subFill[subPostBase[c] + subcat[i]]++] = i;
+        }
+        indexedRows = n;
     }
 
     /**
@@ -171,39 +457,76 @@ public final class MonthlyLedger {
     }
 
     /**
-     * 遍历满足条件的行（按自然顺序0..size-1），consumer返回true表示继续，false表示提前停止
+     * 遍历存活的行（按自然顺序0..size-1，跳过已删除的行），consumer返回true表示继续，false表示提前停止
      */
     public void forEach(IntPredicate rowPredicate) {
         for (int i = 0; i < size; i++) {
+            if (deleted != null && deleted.get(i)) continue;
             if (!rowPredicate.test(i)) break;
         }
     }
 
     /**
-     * 按分类快速遍历（需 enableCategoryIndex）
+     * 按分类遍历，行号升序（需 enableCategoryIndex，否则降级为全表扫描）
      */
     public void forEachByCategory(int categoryId, IntPredicate rowPredicate) {
-        if (!categoryIndexEnabled) {
-            // 降级为全表扫描
-            forEach(i -> (cat[i] == categoryId) && rowPredicate.test(i) || cat[i] != categoryId);
-            return;
+        int from = 0;
+        if (categoryIndexEnabled) {
+            ensureCategoryIndex();
+            from = indexedRows;
+            if (categoryId >= 0 && categoryId + 1 < catPostStart.length) {
+                for (int k = catPostStart[categoryId], end = catPostStart[categoryId + 1]; k < end; k++) {
+                    int r = catPostings[k];
+                    if (deleted != null && deleted.get(r)) continue;
+                    if (!rowPredicate.test(r)) return;
+                }
+            }
         }
-        if (categoryId < 0 || categoryId >= catHead.length) return;
-        int r = catHead[categoryId];
-        while (r != -1) {
-            if (!rowPredicate.test(r)) break;
-            r = catNext[r];
+        for (int i = from, n = size; i < n; i++) {
+            if (cat[i] == categoryId && (deleted == null || !deleted.get(i)) && !rowPredicate.test(i)) return;
         }
     }
 
     /**
-     * 根据时间范围求和（闭区间）
+     * 按分类+子类遍历，行号升序（需 enableCategoryIndex，否则降级为全表扫描）
+     */
+    public void forEachBySubCategory(int categoryId, int subCategoryId, IntPredicate rowPredicate) {
+        int from = 0;
+        if (categoryIndexEnabled) {
+            ensureCategoryIndex();
+            from = indexedRows;
+            if (categoryId >= 0 && categoryId + 1 < subPostBase.length
+                    && subCategoryId >= 0 && subCategoryId < subPostBase[categoryId + 1] - subPostBase[categoryId]) {
+                int k = subPostBase[categoryId] + subCategoryId;
+                for (int j = subPostStart[k], end = subPostStart[k + 1]; j < end; j++) {
+                    int r = subPostings[j];
+                    if (deleted != null && deleted.get(r)) continue;
+                    if (!rowPredicate.test(r)) return;
+                }
+            }
+        }
+        for (int i = from, n = size; i < n; i++) {
+            if (cat[i] == categoryId && subcat[i] == subCategoryId && (deleted == null || !deleted.get(i))
+                    && !rowPredicate.test(i)) return;
+        }
+    }
+
+    /**
+     * 根据时间范围求和（闭区间）；已按时间排序时二分定位区间，只累加区间内的行
      */
     public long sumAmountByTimeRange(long fromMillisInclusive, long toMillisInclusive) {
         long s = 0;
+        if (sortedByTime) {
+            if (fromMillisInclusive > toMillisInclusive) return 0;
+            int to = upperBound(toMillisInclusive);
+            for (int i = lowerBound(fromMillisInclusive); i < to; i++) {
+                if (deleted == null || !deleted.get(i)) s += amount[i];
+            }
+            return s;
+        }
         for (int i = 0; i < size; i++) {
             long t = ts[i];
-            if (t >= fromMillisInclusive && t <= toMillisInclusive) {
+            if (t >= fromMillisInclusive && t <= toMillisInclusive && (deleted == null || !deleted.get(i))) {
                 s += amount[i];
             }
         }
@@ -211,33 +534,248 @@ public final class MonthlyLedger {
     }
 
     /**
-     * 返回按时间戳升序的“行号视图”数组，不改动底层数据
+     * 时间闭区间内的金额合计，与 {@link #sumAmountByTimeRange} 相同；已启用金额累计索引且账本按时间排序时为 O(log n)。
+     * from 取 Long.MIN_VALUE 即截至 to 的累计余额
+     */
+    public long sumAmount(long fromMillisInclusive, long toMillisInclusive) {
+        if (!amountIndexEnabled || !sortedByTime) return sumAmountByTimeRange(fromMillisInclusive, toMillisInclusive);
+        if (fromMillisInclusive > toMillisInclusive) return 0;
+        ensureAmountIndex();
+        return prefixSum(amountTree, upperBound(toMillisInclusive)) - prefixSum(amountTree, lowerBound(fromMillisInclusive));
+    }
+
+    /**
+     * 某一类别在时间闭区间内的金额合计；条件同 {@link #sumAmount(long, long)}，否则退化为全表扫描
+     */
+    public long sumAmount(int categoryId, long fromMillisInclusive, long toMillisInclusive) {
+        if (fromMillisInclusive > toMillisInclusive) return 0;
+        if (!amountIndexEnabled || !sortedByTime) {
+            long s = 0;
+            for (int i = 0; i < size; i++) {
+                long t = ts[i];
+                if (cat[i] == categoryId && t >= fromMillisInclusive && t <= toMillisInclusive
+                        && (deleted == null || !deleted.get(i))) s += amount[i];
+            }
+            return s;
+        }
+        ensureAmountIndex();
+        if (categoryId < 0 || categoryId >= catRows.length) return 0;
+        int[] rows = catRows[categoryId];
+        int n = catRowCount[categoryId];
+        long[] tree = catTree[categoryId];
+        return prefixSum(tree, rowBound(rows, n, toMillisInclusive, true)) - prefixSum(tree, rowBound(rows, n, fromMillisInclusive, false));
+    }
+
+    /**
+     * rows[0..n) 中首个时间戳 &gt; t（inclusive）或 &gt;= t 的位置；rows 按行号升序，账本已排序故时间也升序
+     */
+    private int rowBound(int[] rows, int n, long t, boolean inclusive) {
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long v = ts[rows[mid]];
+            if (v < t || (inclusive && v == t)) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private void ensureAmountIndex() {
+        if (!amountIndexStale) return;
+        amountTree = new long[capacity + 1];
+        for (int i = 0; i < size; i++) amountTree[i + 1] = liveAmount(i);
+        buildTree(amountTree, size);
+
+        // ID 为负（未分类）的行只计入全表树，与分类倒排索引一致
+        int maxCat = -1;
+        for (int i = 0; i < size; i++) maxCat = Math.max(maxCat, cat[i]);
+        catRowCount = new int[maxCat + 1];
+        for (int i = 0; i < size; i++) {
+            if (cat[i] >= 0) catRowCount[cat[i]]++;
+        }
+        catRows = new int[maxCat + 1][];
+        catTree = new long[maxCat + 1][];
+        for (int c = 0; c <= maxCat; c++) {
+            catRows[c] = new int[Math.max(4, catRowCount[c])];
+            catTree[c] = new long[catRows[c].length + 1];
+        }
+        Arrays.fill(catRowCount, 0);
+        for (int i = 0; i < size; i++) {
+            int c = cat[i];
+            if (c < 0) continue;
+            int k = catRowCount[c]++;
+            catRows[c][k] = i;
+            catTree[c][k + 1] = liveAmount(i);
+        }
+        for (int c = 0; c <= maxCat; c++) buildTree(catTree[c], catRowCount[c]);
+        amountIndexStale = false;
+    }
+
+    /**
+     * 计入累计索引的金额；已删除的行按 0 计
+     */
+    private long liveAmount(int row) {
+        return (deleted != null && deleted.get(row)) ? 0 : amount[row];
+    }
+
+    /**
+     * 新行位于末尾：全表树与所属类别的树各追加一个元素
+     */
+    private void appendAmountIndex(int row) {
+        if (!amountIndexEnabled || amountIndexStale) return;
+        if (!sortedByTime) {
+            amountIndexStale = true;
+            return;
+        }
+        if (row + 1 >= amountTree.length) amountTree = Arrays.copyOf(amountTree, capacity + 1);
+        appendToTree(amountTree, row + 1, amount[row]);
+
+        int c = cat[row];
+        if (c < 0) return;
+        if (c >= catRows.length) {
+            catRows = Arrays.copyOf(catRows, c + 1);
+            catTree = Arrays.copyOf(catTree, c + 1);
+            catRowCount = Arrays.copyOf(catRowCount, c + 1);
+        }
+        if (catRows[c] == null) {
+            catRows[c] = new int[4];
+            catTree[c] = new long[5];
+        }
+        int k = catRowCount[c]++;
+        if (k == catRows[c].length) {
+            catRows[c] = Arrays.copyOf(catRows[c], k + (k >>> 1));
+            catTree[c] = Arrays.copyOf(catTree[c], catRows[c].length + 1);
+        }
+        catRows[c][k] = row;
+        appendToTree(catTree[c], k + 1, amount[row]);
+    }
+
+    /**
+     * 行的金额变化 delta（分类不变）
+     */
+    private void updateAmountIndex(int row, long delta) {
+        if (!amountIndexEnabled || amountIndexStale || delta == 0) return;
+        addToTree(amountTree, size, row + 1, delta);
+        int c = cat[row];
+        if (c < 0) return;
+        int k = Arrays.binarySearch(catRows[c], 0, catRowCount[c], row);
+        addToTree(catTree[c], catRowCount[c], k + 1, delta);
+    }
+
+    // ---------- 树状数组（下标从 1 开始） ----------
+
+    /**
+     * tree[1..n] 预先填入各元素值，原地转换为树状数组，O(n)
+     */
+    private static void buildTree(long[] tree, int n) {
+        for (int i = 1; i <= n; i++) {
+            int parent = i + (i & -i);
+            if (parent <= n) tree[parent] += tree[i];
+        }
+    }
+
+    /**
+     * 前 n 个元素之和
+     */
+    private static long prefixSum(long[] tree, int n) {
+        long s = 0;
+        for (int i = n; i > 0; i -= i & -i) s += tree[i];
+        return s;
+    }
+
+    private static void addToTree(long[] tree, int n, int i, long delta) {
+        for (; i <= n; i += i & -i) tree[i] += delta;
+    }
+
+    /**
+     * 在已有 i-1 个元素的树末尾追加第 i 个元素：tree[i] 覆盖 (i - lowbit(i), i]，其余节点不受影响
+     */
+    private static void appendToTree(long[] tree, int i, long v) {
+        tree[i] = v + prefixSum(tree, i - 1) - prefixSum(tree, i - (i & -i));
+    }
+
+    /**
+     * 时间戳不早于 fromMillisInclusive 的行数；已排序时为一次二分
+     */
+    public int countSince(long fromMillisInclusive) {
+        if (sortedByTime) {
+            int from = lowerBound(fromMillisInclusive);
+            return size - from - ((deleted == null) ? 0 : deleted.get(from, size).cardinality());
+        }
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (ts[i] >= fromMillisInclusive && (deleted == null || !deleted.get(i))) n++;
+        }
+        return n;
+    }
+
+    /**
+     * 首个时间戳 &gt;= epochMillis 的行号（都更早时为 size）；要求已按时间排序
+     */
+    public int firstRowAtOrAfter(long epochMillis) {
+        if (!sortedByTime) throw new IllegalStateException("账本未按时间排序");
+        return lowerBound(epochMillis);
+    }
+
+    private int lowerBound(long t) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ts[mid] < t) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private int upperBound(long t) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ts[mid] <= t) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * 返回按时间戳升序的“行号视图”数组（不含已删除的行），不改动底层数据；同一时间戳保持原有先后。
+     * 已按时间排序时直接返回 0..size-1，不做排序
      */
     public int[] sortedIndicesByTimestampAsc() {
+        return dropDeleted(timeOrder());
+    }
+
+    /**
+     * 全部行（含已删除）按时间戳的稳定排序
+     */
+    private int[] timeOrder() {
         int[] idx = new int[size];
         for (int i = 0; i < size; i++) idx[i] = i;
-        // TimSort on primitive via boxed会有装箱成本；这里用简易快排以避免装箱
-        quickSortByTs(idx, 0, size - 1);
+        if (sortedByTime) return idx;
+        // 自底向上归并排序：稳定，且不对行号装箱
+        int[] buf = new int[size];
+        for (int width = 1; width < size; width <<= 1) {
+            for (int lo = 0; lo < size - width; lo += width << 1) {
+                int mid = lo + width, hi = Math.min(lo + (width << 1), size);
+                if (ts[idx[mid - 1]] <= ts[idx[mid]]) continue; // 两段已有序
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) buf[k++] = (ts[idx[j]] < ts[idx[i]]) ? idx[j++] : idx[i++];
+                while (i < mid) buf[k++] = idx[i++];
+                while (j < hi) buf[k++] = idx[j++];
+                System.arraycopy(buf, lo, idx, lo, hi - lo);
+            }
+        }
         return idx;
     }
 
-    private void quickSortByTs(int[] a, int l, int r) {
-        if (l >= r) return;
-        int i = l, j = r;
-        long pivot = ts[a[(l + r) >>> 1]];
-        while (i <= j) {
-            while (ts[a[i]] < pivot) i++;
-            while (ts[a[j]] > pivot) j--;
-            if (i <= j) {
-                int tmp = a[i];
-                a[i] = a[j];
-                a[j] = tmp;
-                i++;
-                j--;
-            }
+    private int[] dropDeleted(int[] idx) {
+        if (deletedCount == 0) return idx;
+        int[] out = new int[liveCount()];
+        int k = 0;
+        for (int r : idx) {
+            if (!deleted.get(r)) out[k++] = r;
         }
-        if (l < j) quickSortByTs(a, l, j);
-        if (i < r) quickSortByTs(a, i, r);
+        return out;
     }
 
     public final class EntryView {
@@ -276,6 +814,7 @@ public final class MonthlyLedger {
 
     private void rangeCheck(int r) {
         if (r < 0 || r >= size) throw new NoSuchElementException("row " + r);
+        if (deleted != null && deleted.get(r)) throw new NoSuchElementException("row " + r + " deleted");
     }
 }
 
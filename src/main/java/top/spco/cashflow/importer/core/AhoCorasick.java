@@ -0,0 +1,155 @@
+/*
+ * Copyright 2025 SpCo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package top.spco.cashflow.importer.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 多模式子串匹配自动机（Aho–Corasick）：一次扫描文本即可找出所有出现的关键字。
+ * 每个关键字携带一个整型载荷（这里是规则下标），命中时写入 BitSet。
+ * 构建后只读，可多线程共享。
+ */
+final class AhoCorasick {
+    // 节点 0 为根；每个节点的出边按字符升序存放，查找用二分
+    private final char[][] edgeChars;
+    private final int[][] edgeTargets;
+    private final int[] fail;
+    private final int[][] outputs; // 已并入 fail 链上的输出
+
+    private AhoCorasick(char[][] edgeChars, int[][] edgeTargets, int[] fail, int[][] outputs) {
+        this.edgeChars = edgeChars;
+        this.edgeTargets = edgeTargets;
+        this.fail = fail;
+        this.outputs = outputs;
+    }
+
+    /**
+     * 扫描 text，把所有命中关键字的载荷置位到 hits
+     */
+    void collect(String text, BitSet hits) {
+        int node = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            int next;
+            while ((next = step(node, c)) < 0 && node != 0) node = fail[node];
+            node = Math.max(next, 0);
+            for (int id : outputs[node]) hits.set(id);
+        }
+    }
+
+    private int step(int node, char c) {
+        int k = Arrays.binarySearch(edgeChars[node], c);
+        return k >= 0 ? edgeTargets[node][k] : -1;
+    }
+
+    static final class Builder {
+        private final List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        private final List<List<Integer>> own = new ArrayList<>();
+
+        Builder() {
+            newNode();
+        }
+
+        private int newNode() {
+            children.add(new TreeMap<>());
+            own.add(new ArrayList<>());
+            return children.size() - 1;
+        }
+
+        /**
+         * 登记关键字（空串会命中任意文本，调用方应自行排除）
+         */
+        Builder add(String keyword, int payload) {
+            int node = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = keyword.charAt(i);
+                Integer next = children.get(node).get(c);
+                if (next == null) {
+                    next = newNode();
+                    children.get(node).put(c, next);
+                }
+                node = next;
+            }
+            own.get(node).add(payload);
+            return this;
+        }
+
+        boolean isEmpty() {
+            return children.get(0).isEmpty();
+        }
+
+        AhoCorasick build() {
+            int n = children.size();
+            char[][] edgeChars = new char[n][];
+            int[][] edgeTargets = new int[n][];
+            for (int v = 0; v < n; v++) {
+                TreeMap<Character, Integer> m = children.get(v);
+                edgeChars[v] = new char[m.size()];
+                edgeTargets[v] = new int[m.size()];
+                int k = 0;
+                for (Map.Entry<Character, Integer> e : m.entrySet()) {
+                    edgeChars[v][k] = e.getKey();
+                    edgeTargets[v][k] = e.getValue();
+                    k++;
+                }
+            }
+
+            // BFS 求 fail 指针，并沿 fail 链合并输出（父节点的 fail 总是先于子节点完成）
+            int[] fail = new int[n];
+            int[][] outputs = new int[n][];
+            outputs[0] = toArray(own.get(0));
+            AhoCorasick partial = new AhoCorasick(edgeChars, edgeTargets, fail, outputs);
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int child : edgeTargets[0]) {
+                fail[child] = 0;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                int v = queue.poll();
+                outputs[v] = merge(own.get(v), outputs[fail[v]]);
+                for (int k = 0; k < edgeChars[v].length; k++) {
+                    char c = edgeChars[v][k];
+                    int u = edgeTargets[v][k];
+                    int f = fail[v];
+                    int next;
+                    while ((next = partial.step(f, c)) < 0 && f != 0) f = fail[f];
+                    fail[u] = (next >= 0 && next != u) ? next : 0;
+                    queue.add(u);
+                }
+            }
+            return partial;
+        }
+
+        private static int[] toArray(List<Integer> list) {
+            int[] a = new int[list.size()];
+            for (int i = 0; i < a.length; i++) a[i] = list.get(i);
+            return a;
+        }
+
+        private static int[] merge(List<Integer> own, int[] inherited) {
+            if (own.isEmpty()) return inherited;
+            int[] a = Arrays.copyOf(toArray(own), own.size() + inherited.length);
+            System.arraycopy(inherited, 0, a, own.size(), inherited.length);
+            return a;
+        }
+    }
+}
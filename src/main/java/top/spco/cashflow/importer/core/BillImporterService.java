@@ -16,10 +16,12 @@
 package top.spco.cashflow.importer.core;
 
 import top.spco.cashflow.importer.config.RuleConfig;
+import top.spco.cashflow.importer.config.RuleConfigs;
 import top.spco.cashflow.importer.wechat.WeChatBillParser;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -30,10 +32,46 @@ public final class BillImporterService {
             new WeChatBillParser()
     );
 
+    // 最近一次加载的规则文件及其编译结果（文件未变化时跨导入复用，避免重复编译正则）
+    private File rulesFile;
+    private long rulesModified;
+    private long rulesLength;
+    private CompiledRuleSet rules;
+
     public List<FinalTxn> importFile(File file, RuleConfig cfg) throws IOException {
+        return importFile(file, CompiledRuleSet.compile(cfg));
+    }
+
+    public List<FinalTxn> importFile(File file, CompiledRuleSet rules) throws IOException {
         BillParser p = parsers.stream().filter(pp -> pp.supports(file)).findFirst()
                 .orElseThrow(() -> new IOException("没有可用的解析器：" + file.getName()));
-        List<UnifiedTxn> raw = p.parse(file);
-        return RuleEngine.apply(raw, cfg);
+        // 边解析边归类：原始记录只按批缓存，满一批（达到并行阈值）就交给规则引擎
+        List<FinalTxn> out = new ArrayList<>();
+        List<UnifiedTxn> batch = new ArrayList<>(RuleEngine.PARALLEL_THRESHOLD);
+        p.forEach(file, t -> {
+            batch.add(t);
+            if (batch.size() >= RuleEngine.PARALLEL_THRESHOLD) {
+                out.addAll(RuleEngine.apply(batch, rules));
+                batch.clear();
+            }
+        });
+        out.addAll(RuleEngine.apply(batch, rules));
+        return out;
+    }
+
+    /**
+     * 加载并编译规则文件；null 表示不使用规则。文件未修改时直接返回上次的编译结果。
+     */
+    public synchronized CompiledRuleSet loadRules(File yamlFile) throws IOException {
+        if (yamlFile == null) return CompiledRuleSet.compile(RuleConfigs.empty());
+        long modified = yamlFile.lastModified();
+        long length = yamlFile.length();
+        if (rules == null || !yamlFile.equals(rulesFile) || modified != rulesModified || length != rulesLength) {
+            rules = CompiledRuleSet.compile(RuleConfigs.load(yamlFile));
+            rulesFile = yamlFile;
+            rulesModified = modified;
+            rulesLength = length;
+        }
+        return rules;
     }
 }
\ No newline at end of file
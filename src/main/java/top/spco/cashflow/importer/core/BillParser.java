@@ -18,6 +18,7 @@ package top.spco.cashflow.importer.core;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface BillParser {
     /**
@@ -29,4 +30,12 @@ public interface BillParser {
      * 解析为统一模型列表（不做归类、不丢弃）。
      */
     List<UnifiedTxn> parse(File file) throws IOException;
+
+    /**
+     * 流式解析：每解析出一条就交给 sink，不在内存中保留整张账单。
+     * 默认实现退化为先 {@link #parse(File)} 再逐条回调。
+     */
+    default void forEach(File file, Consumer<? super UnifiedTxn> sink) throws IOException {
+        for (UnifiedTxn t : parse(file)) sink.accept(t);
+    }
 }
\ No newline at end of file
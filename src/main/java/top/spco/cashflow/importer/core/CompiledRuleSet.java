@@ -0,0 +1,252 @@
+/*
+ * Copyright 2025 SpCo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package top.spco.cashflow.importer.core;
+
+import top.spco.cashflow.importer.config.RuleConfig;
+import top.spco.cashflow.importer.config.RuleDef;
+
+import java.math.BigDecimal;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * 预编译后的规则集：正则、大小写折叠后的关键字、金额表达式都只在构建时解析一次，
+ * 之后可在多次导入间复用（只读，线程安全）。
+ */
+public final class CompiledRuleSet {
+    private final RuleConfig.Defaults defaults;
+    private final Rule[] rules;
+    private final RuleIndex index;
+
+    private CompiledRuleSet(RuleConfig.Defaults defaults, Rule[] rules) {
+        this.defaults = defaults;
+        this.rules = rules;
+        this.index = new RuleIndex(rules);
+    }
+
+    public static CompiledRuleSet compile(RuleConfig cfg) {
+        RuleConfig.Defaults d = (cfg.defaults != null) ? cfg.defaults : new RuleConfig.Defaults();
+        List<RuleDef> defs = (cfg.rules != null) ? cfg.rules : List.of();
+        Rule[] rules = new Rule[defs.size()];
+        for (int i = 0; i < rules.length; i++) {
+            RuleDef def = defs.get(i);
+            try {
+                rules[i] = new Rule(def.when, def.then);
+            } catch (RuntimeException e) {
+                String name = (def.name == null || def.name.isBlank()) ? ("#" + (i + 1)) : def.name;
+                throw new IllegalArgumentException("规则【" + name + "】无效：" + e.getMessage(), e);
+            }
+        }
+        return new CompiledRuleSet(d, rules);
+    }
+
+    public RuleConfig.Defaults defaults() {
+        return defaults;
+    }
+
+    public int size() {
+        return rules.length;
+    }
+
+    /**
+     * 返回首个命中的规则；均未命中返回 null。
+     * 先经索引取候选，再按规则下标升序做完整匹配，结果与逐条顺序匹配一致。
+     */
+    Rule firstMatch(UnifiedTxn t) {
+        RowText text = new RowText(t);
+        BitSet candidates = index.candidates(text);
+        for (int id = candidates.nextSetBit(0); id >= 0; id = candidates.nextSetBit(id + 1)) {
+            if (rules[id].matches(t, text)) return rules[id];
+        }
+        return null;
+    }
+
+    // ---------- 编译后的结构 ----------
+
+    static final class Rule {
+        private final TextMatcher payee;
+        private final TextMatcher item;
+        private final TextMatcher note;
+        private final AmountPredicate amount;
+
+        final boolean drop;
+        final String category;        // 空白视为未设置
+        final String sub;
+        final Pattern noteReplace;    // 可为 null
+        final String noteReplaceWith;
+
+        Rule(RuleDef.When w, RuleDef.Then then) {
+            this.payee = (w == null) ? null : TextMatcher.of(w.payee);
+            this.item = (w == null) ? null : TextMatcher.of(w.item);
+            this.note = (w == null) ? null : TextMatcher.of(w.note);
+            this.amount = (w == null || w.amount == null) ? null : AmountPredicate.parse(w.amount);
+
+            this.drop = then != null && Boolean.TRUE.equals(then.drop);
+            this.category = (then != null && notBlank(then.category)) ? then.category : null;
+            this.sub = (then != null && notBlank(then.sub)) ? then.sub : null;
+            if (then != null && then.noteReplace != null && notBlank(then.noteReplace.regex)) {
+                this.noteReplace = Pattern.compile(then.noteReplace.regex);
+                this.noteReplaceWith = then.noteReplace.with == null ? "" : then.noteReplace.with;
+            } else {
+                this.noteReplace = null;
+                this.noteReplaceWith = "";
+            }
+        }
+
+        TextMatcher matcher(int field) {
+            return switch (field) {
+                case RuleIndex.PAYEE -> payee;
+                case RuleIndex.ITEM -> item;
+                case RuleIndex.NOTE -> note;
+                default -> throw new IllegalArgumentException("field " + field);
+            };
+        }
+
+        boolean matches(UnifiedTxn t, RowText text) {
+            if (payee != null && !payee.test(text.payee, payee.ignoreCase ? text.payeeFolded() : null)) return false;
+            if (item != null && !item.test(text.item, item.ignoreCase ? text.itemFolded() : null)) return false;
+            if (note != null && !note.test(text.note, note.ignoreCase ? text.noteFolded() : null)) return false;
+            return amount == null || amount.test(t.amountCents());
+        }
+    }
+
+    static final class TextMatcher {
+        final boolean ignoreCase;
+        final String equals;   // 已按 ignoreCase 折叠
+        final String contains; // 已按 ignoreCase 折叠
+        final Pattern regex;
+
+        private TextMatcher(RuleDef.TextMatch tm) {
+            this.ignoreCase = tm.ignoreCase == null || tm.ignoreCase;
+            this.equals = (tm.equals == null) ? null : (ignoreCase ? tm.equals.toLowerCase() : tm.equals);
+            this.contains = (tm.contains == null) ? null : (ignoreCase ? tm.contains.toLowerCase() : tm.contains);
+            this.regex = (tm.regex == null) ? null : Pattern.compile(tm.regex);
+        }
+
+        static TextMatcher of(RuleDef.TextMatch tm) {
+            return (tm == null) ? null : new TextMatcher(tm);
+        }
+
+        /**
+         * @param raw    原文（正则始终作用于原文）
+         * @param folded 小写后的原文（仅 ignoreCase 时提供）
+         */
+        boolean test(String raw, String folded) {
+            String cmp = ignoreCase ? folded : raw;
+            if (equals != null && !cmp.equals(equals)) return false;
+            if (contains != null && !cmp.contains(contains)) return false;
+            return regex == null || regex.matcher(raw).find();
+        }
+    }
+
+    /**
+     * 金额条件：expr 形如 >0, <0, >=123.45, ==0, != 10，右值预先换算为“分”
+     */
+    static final class AmountPredicate {
+        static final byte GT = 0, LT = 1, GE = 2, LE = 3, EQ = 4, NE = 5;
+
+        final byte op;
+        final long rhsCents;
+
+        private AmountPredicate(byte op, long rhsCents) {
+            this.op = op;
+            this.rhsCents = rhsCents;
+        }
+
+        // 注意顺序：双字符运算符须先于单字符匹配
+        private static final String[] OP_TEXT = {">=", "<=", "==", "!=", ">", "<"};
+        private static final byte[] OP_CODE = {GE, LE, EQ, NE, GT, LT};
+
+        static AmountPredicate parse(String expr) {
+            String e = expr.replace(" ", "");
+            int k = 0;
+            while (k < OP_TEXT.length && !e.startsWith(OP_TEXT[k])) k++;
+            if (k == OP_TEXT.length) throw new IllegalArgumentException("非法金额表达式: " + expr);
+            byte op = OP_CODE[k];
+            int len = OP_TEXT[k].length();
+            long rhs;
+            try {
+                rhs = new BigDecimal(e.substring(len)).setScale(2).movePointRight(2).longValueExact();
+            } catch (ArithmeticException | NumberFormatException ex) {
+                throw new IllegalArgumentException("非法金额表达式: " + expr, ex);
+            }
+            return new AmountPredicate(op, rhs);
+        }
+
+        boolean test(long cents) {
+            return switch (op) {
+                case GT -> cents > rhsCents;
+                case LT -> cents < rhsCents;
+                case GE -> cents >= rhsCents;
+                case LE -> cents <= rhsCents;
+                case EQ -> cents == rhsCents;
+                case NE -> cents != rhsCents;
+                default -> false;
+            };
+        }
+    }
+
+    /**
+     * 单行的文本字段；小写形式按需计算且每行只算一次
+     */
+    static final class RowText {
+        final String payee;
+        final String item;
+        final String note;
+        private String payeeFolded;
+        private String itemFolded;
+        private String noteFolded;
+
+        RowText(UnifiedTxn t) {
+            this.payee = nz(t.payee());
+            this.item = nz(t.item());
+            this.note = nz(t.note());
+        }
+
+        String field(int field, boolean folded) {
+            return switch (field) {
+                case RuleIndex.PAYEE -> folded ? payeeFolded() : payee;
+                case RuleIndex.ITEM -> folded ? itemFolded() : item;
+                case RuleIndex.NOTE -> folded ? noteFolded() : note;
+                default -> throw new IllegalArgumentException("field " + field);
+            };
+        }
+
+        String payeeFolded() {
+            if (payeeFolded == null) payeeFolded = payee.toLowerCase();
+            return payeeFolded;
+        }
+
+        String itemFolded() {
+            if (itemFolded == null) itemFolded = item.toLowerCase();
+            return itemFolded;
+        }
+
+        String noteFolded() {
+            if (noteFolded == null) noteFolded = note.toLowerCase();
+            return noteFolded;
+        }
+    }
+
+    private static String nz(String s) {
+        return s == null ? "" : s;
+    }
+
+    private static boolean notBlank(String s) {
+        return s != null && !s.isBlank();
+    }
+}
@@ -16,104 +16,111 @@
 package top.spco.cashflow.importer.core;
 
 import top.spco.cashflow.importer.config.RuleConfig;
-import top.spco.cashflow.importer.config.RuleDef;
 
-import java.math.BigDecimal;
+import java.io.Serial;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public final class RuleEngine {
+    /**
+     * 行数达到该阈值才并行；小批量时线程调度的开销得不偿失
+     */
+    static final int PARALLEL_THRESHOLD = 8192;
+    /**
+     * 并行时单个任务处理的最少行数
+     */
+    private static final int CHUNK = 2048;
 
     public static List<FinalTxn> apply(List<UnifiedTxn> src, RuleConfig cfg) {
-        List<FinalTxn> out = new ArrayList<>();
-        for (UnifiedTxn t : src) {
-            RuleDef.Then then = null;
-
-            // 顺序匹配，命中首个规则
-            for (RuleDef rule : cfg.rules) {
-                if (matches(t, rule.when)) {
-                    then = rule.then;
-                    break;
-                }
-            }
-
-            if (then != null && Boolean.TRUE.equals(then.drop)) {
-                continue; // 丢弃
-            }
-
-            String cat = (then != null && notBlank(then.category)) ? then.category : cfg.defaults.category;
-            String sub = (then != null && notBlank(then.sub)) ? then.sub : cfg.defaults.sub;
-
-            String note = t.note();
-            if (then != null && then.noteReplace != null && notBlank(then.noteReplace.regex)) {
-                note = note.replaceAll(then.noteReplace.regex, then.noteReplace.with == null ? "" : then.noteReplace.with);
-            }
-            if (isBlank(note)) note = fallbackNote(t, cfg);
+        return apply(src, CompiledRuleSet.compile(cfg));
+    }
 
-            out.add(new FinalTxn(t.timestampMs(), t.amountCents(), cat, sub, note));
+    public static List<FinalTxn> apply(List<UnifiedTxn> src, CompiledRuleSet rules) {
+        if (src.size() >= PARALLEL_THRESHOLD) return applyParallel(src, rules, ForkJoinPool.commonPool());
+        List<FinalTxn> out = new ArrayList<>(src.size());
+        for (UnifiedTxn t : src) {
+            FinalTxn f = classify(t, rules);
+            if (f != null) out.add(f);
         }
         return out;
     }
 
-    // ---------- helpers ----------
-    private static boolean matches(UnifiedTxn t, RuleDef.When w) {
-        if (w == null) return true;
-        if (w.payee != null && !textMatch(t.payee(), w.payee)) return false;
-        if (w.item != null && !textMatch(t.item(), w.item)) return false;
-        if (w.note != null && !textMatch(t.note(), w.note)) return false;
-        if (w.amount != null && !amountMatch(t.amountCents(), w.amount)) return false;
-
-        return true;
+    /**
+     * 分块并行归类；每个分块把结果写回与输入同下标的槽位（丢弃的行留 null），最后按原顺序拼接
+     */
+    public static List<FinalTxn> applyParallel(List<UnifiedTxn> src, CompiledRuleSet rules, ForkJoinPool pool) {
+        // 需要随机访问才能按下标切分
+        List<UnifiedTxn> in = (src instanceof RandomAccess) ? src : new ArrayList<>(src);
+        FinalTxn[] slots = new FinalTxn[in.size()];
+        pool.invoke(new ClassifyTask(in, rules, slots, 0, slots.length));
+
+        List<FinalTxn> out = new ArrayList<>(slots.length);
+        for (FinalTxn f : slots) {
+            if (f != null) out.add(f);
+        }
+        return out;
     }
 
-    private static boolean textMatch(String text, RuleDef.TextMatch tm) {
-        String s = nz(text);
-        boolean ic = tm.ignoreCase == null || tm.ignoreCase;
-        String cmp = ic ? s.toLowerCase() : s;
+    private static final class ClassifyTask extends RecursiveAction {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        // 任务只在进程内的 ForkJoinPool 中执行，从不序列化
+        private final transient List<UnifiedTxn> src;
+        private final transient CompiledRuleSet rules;
+        private final transient FinalTxn[] slots;
+        private final int from, to;
+
+        ClassifyTask(List<UnifiedTxn> src, CompiledRuleSet rules, FinalTxn[] slots, int from, int to) {
+            this.src = src;
+            this.rules = rules;
+            this.slots = slots;
+            this.from = from;
+            this.to = to;
+        }
 
-        if (tm.equals != null) {
-            String target = ic ? tm.equals.toLowerCase() : tm.equals;
-            if (!cmp.equals(target)) return false;
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK) {
+                for (int i = from; i < to; i++) slots[i] = classify(src.get(i), rules);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ClassifyTask(src, rules, slots, from, mid),
+                    new ClassifyTask(src, rules, slots, mid, to));
         }
-        if (tm.contains != null) {
-            String needle = ic ? tm.contains.toLowerCase() : tm.contains;
-            if (!cmp.contains(needle)) return false;
+    }
+
+    /**
+     * 对单条记录应用规则；被规则丢弃时返回 null
+     */
+    public static FinalTxn classify(UnifiedTxn t, CompiledRuleSet rules) {
+        // 顺序匹配，命中首个规则
+        CompiledRuleSet.Rule rule = rules.firstMatch(t);
+
+        if (rule != null && rule.drop) {
+            return null; // 丢弃
         }
-        if (tm.regex != null) {
-            Pattern p = Pattern.compile(tm.regex);
-            if (!p.matcher(s).find()) return false;
+
+        RuleConfig.Defaults defaults = rules.defaults();
+        String cat = (rule != null && rule.category != null) ? rule.category : defaults.category;
+        String sub = (rule != null && rule.sub != null) ? rule.sub : defaults.sub;
+
+        String note = t.note();
+        if (rule != null && rule.noteReplace != null) {
+            note = rule.noteReplace.matcher(note).replaceAll(rule.noteReplaceWith);
         }
-        return true;
-    }
+        if (isBlank(note)) note = fallbackNote(t, defaults);
 
-    // expr: >0, <0, >=123.45, ==0, != 10
-    private static boolean amountMatch(long cents, String expr) {
-        String e = expr.replace(" ", "");
-        String op;
-        if (e.startsWith(">=")) op = ">=";
-        else if (e.startsWith("<=")) op = "<=";
-        else if (e.startsWith("==")) op = "==";
-        else if (e.startsWith("!=")) op = "!=";
-        else if (e.startsWith(">")) op = ">";
-        else if (e.startsWith("<")) op = "<";
-        else throw new IllegalArgumentException("非法金额表达式: " + expr);
-        String num = e.substring(op.length());
-        long rhs = new BigDecimal(num).setScale(2).movePointRight(2).longValueExact();
-
-        return switch (op) {
-            case ">" -> cents > rhs;
-            case "<" -> cents < rhs;
-            case ">=" -> cents >= rhs;
-            case "<=" -> cents <= rhs;
-            case "==" -> cents == rhs;
-            case "!=" -> cents != rhs;
-            default -> false;
-        };
+        return new FinalTxn(t.timestampMs(), t.amountCents(), cat, sub, note);
     }
 
-    private static String fallbackNote(UnifiedTxn t, RuleConfig cfg) {
-        for (String k : cfg.defaults.noteFallbackOrder) {
+    // ---------- helpers ----------
+    private static String fallbackNote(UnifiedTxn t, RuleConfig.Defaults defaults) {
+        for (String k : defaults.noteFallbackOrder) {
             switch (k) {
                 case "note" -> {
                     if (notBlank(t.note())) return t.note();
@@ -129,10 +136,6 @@ public final class RuleEngine {
         return "";
     }
 
-    private static String nz(String s) {
-        return s == null ? "" : s;
-    }
-
     private static boolean notBlank(String s) {
         return s != null && !s.isBlank();
     }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2025 SpCo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package top.spco.cashflow.importer.core;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 规则候选索引：每条规则挑一个“锚点”（某字段上的 equals 或 contains 关键字），
+ * equals 走哈希表、contains 走 Aho–Corasick 自动机，一行文本扫描一遍即可得到候选规则集合。
+ * 没有可用锚点的规则（只有正则/金额条件等）始终作为候选。
+ * <p>
+ * 候选只是必要条件，调用方仍需按下标升序对候选做完整匹配，以保持“命中首个规则”的语义。
+ */
+final class RuleIndex {
+    static final int PAYEE = 0, ITEM = 1, NOTE = 2;
+    private static final int FIELDS = 3;
+
+    private final int ruleCount;
+    private final BitSet always;                 // 无锚点的规则
+    // [field][0=区分大小写, 1=忽略大小写]
+    private final AhoCorasick[][] contains = new AhoCorasick[FIELDS][2];
+    // 下标 field * 2 + mode，同上
+    private final List<Map<String, BitSet>> equals = new ArrayList<>(Collections.nCopies(FIELDS * 2, null));
+
+    RuleIndex(CompiledRuleSet.Rule[] rules) {
+        this.ruleCount = rules.length;
+        this.always = new BitSet(rules.length);
+        AhoCorasick.Builder[][] builders = new AhoCorasick.Builder[FIELDS][2];
+
+        for (int id = 0; id < rules.length; id++) {
+            CompiledRuleSet.Rule r = rules[id];
+            // 优先 equals（最具选择性），其次最长的 contains
+            int bestField = -1;
+            boolean bestIsEquals = false;
+            int bestLen = 0;
+            for (int f = 0; f < FIELDS; f++) {
+                CompiledRuleSet.TextMatcher m = r.matcher(f);
+                if (m == null) continue;
+                if (m.equals != null) {
+                    if (!bestIsEquals) {
+                        bestField = f;
+                        bestIsEquals = true;
+                    }
+                } else if (!bestIsEquals && m.contains != null && m.contains.length() > bestLen) {
+                    bestField = f;
+                    bestLen = m.contains.length();
+                }
+            }
+            if (bestField < 0) {
+                always.set(id);
+                continue;
+            }
+            CompiledRuleSet.TextMatcher m = r.matcher(bestField);
+            int mode = m.ignoreCase ? 1 : 0;
+            if (bestIsEquals) {
+                Map<String, BitSet> eq = equals.get(bestField * 2 + mode);
+                if (eq == null) equals.set(bestField * 2 + mode, eq = new HashMap<>());
+                eq.computeIfAbsent(m.equals, k -> new BitSet()).set(id);
+            } else {
+                if (builders[bestField][mode] == null) builders[bestField][mode] = new AhoCorasick.Builder();
+                builders[bestField][mode].add(m.contains, id);
+            }
+        }
+
+        for (int f = 0; f < FIELDS; f++) {
+            for (int mode = 0; mode < 2; mode++) {
+                AhoCorasick.Builder b = builders[f][mode];
+                if (b != null && !b.isEmpty()) contains[f][mode] = b.build();
+            }
+        }
+    }
+
+    /**
+     * 返回该行的候选规则下标集合
+     */
+    BitSet candidates(CompiledRuleSet.RowText text) {
+        BitSet out = new BitSet(ruleCount);
+        out.or(always);
+        for (int f = 0; f < FIELDS; f++) {
+            for (int mode = 0; mode < 2; mode++) {
+                AhoCorasick ac = contains[f][mode];
+                Map<String, BitSet> eq = equals.get(f * 2 + mode);
+                if (ac == null && eq == null) continue;
+                String s = text.field(f, mode == 1);
+                if (ac != null) ac.collect(s, out);
+                if (eq != null) {
+                    BitSet hit = eq.get(s);
+                    if (hit != null) out.or(hit);
+                }
+            }
+        }
+        return out;
+    }
+}
@@ -20,13 +20,19 @@ import top.spco.cashflow.importer.core.UnifiedTxn;
 
 import java.io.*;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.function.Consumer;
 
 public final class WeChatBillParser implements BillParser {
     private static final DateTimeFormatter DTF = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final Charset GB18030 = Charset.forName("GB18030");
+    private static final int SNIFF_BYTES = 64 * 1024;
 
     @Override public boolean supports(File f) {
         String n = f.getName().toLowerCase(Locale.ROOT);
@@ -34,26 +40,40 @@ public final class WeChatBillParser implements BillParser {
     }
 
     @Override public List<UnifiedTxn> parse(File file) throws IOException {
-        // 为简洁，这里只给出 CSV 路径；你可以复用之前的 .xlsx 代码返回 UnifiedTxn。
+        List<UnifiedTxn> out = new ArrayList<>();
+        forEach(file, out::add);
+        return out;
+    }
+
+    @Override public void forEach(File file, Consumer<? super UnifiedTxn> sink) throws IOException {
         if (file.getName().toLowerCase(Locale.ROOT).endsWith(".xlsx")) {
-            return WeChatXlsx.read(file); // 你已有的 POI 解析，改为产出 UnifiedTxn
+            WeChatXlsx.stream(file, sink); // SAX 事件模型，逐行产出
+            return;
         }
-        return parseCsv(file);
+        parseCsv(file, sink);
     }
 
-    private static List<UnifiedTxn> parseCsv(File file) throws IOException {
-        List<UnifiedTxn> out = new ArrayList<>();
-        try (var br = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
-            String line; List<String[]> rows = new ArrayList<>();
+    /**
+     * 逐行读取：表头之前的行只用于定位表头，之后每行解析完立即交给 sink，不缓存整个文件
+     */
+    private static void parseCsv(File file, Consumer<? super UnifiedTxn> sink) throws IOException {
+        try (var in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+             var br = new BufferedReader(new InputStreamReader(in, detectCharset(in)))) {
+            String line;
+            int scanned = 0;
+            Map<String,Integer> col = null;
             while ((line = br.readLine()) != null) {
-                if (rows.isEmpty() && !line.isEmpty() && line.charAt(0) == '\uFEFF') line = line.substring(1);
-                if (!line.isBlank()) rows.add(splitCsv(line));
-            }
-            int head = findHeader(rows);
-            Map<String,Integer> col = mapHeader(rows.get(head));
+                if (scanned == 0 && !line.isEmpty() && line.charAt(0) == '\uFEFF') line = line.substring(1);
+                if (line.isBlank()) continue;
+                String[] r = splitCsv(line);
+
+                if (col == null) {
+                    // 表头须出现在前 200 个非空行内
+                    if (r.length>0 && "交易时间".equals(r[0].trim())) col = mapHeader(r);
+                    else if (++scanned >= 200) break;
+                    continue;
+                }
 
-            for (int i = head + 1; i < rows.size(); i++) {
-                String[] r = rows.get(i);
                 String time = get(r, col.get("交易时间"));
                 if (time.isEmpty() || time.startsWith("---")) continue;
 
@@ -66,10 +86,31 @@ public final class WeChatBillParser implements BillParser {
                 long ts = LocalDateTime.parse(time, DTF).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
                 long cents = parseAmount(inout, amtStr);
 
-                out.add(new UnifiedTxn(ts, cents, nz(payee), nz(item), nz(note)));
+                sink.accept(new UnifiedTxn(ts, cents, nz(payee), nz(item), nz(note)));
             }
+            if (col == null) throw new IllegalStateException("未找到表头：交易时间");
         }
-        return out;
+    }
+
+    /**
+     * 嗅探编码：带 BOM 的 UTF-8 跳过 BOM；否则开头一段能按 UTF-8 严格解码即视为 UTF-8，
+     * 不能则按 GB18030（GBK 的超集，老版本微信导出）处理。不依赖平台默认编码。
+     */
+    private static Charset detectCharset(InputStream in) throws IOException {
+        in.mark(SNIFF_BYTES);
+        byte[] head = in.readNBytes(SNIFF_BYTES);
+        in.reset();
+        if (head.length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB && (head[2] & 0xFF) == 0xBF) {
+            in.skipNBytes(3);
+            return StandardCharsets.UTF_8;
+        }
+        CharsetDecoder dec = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        // 没读满说明已到文件尾；否则末尾被截断的多字节字符不算错误
+        boolean eof = head.length < SNIFF_BYTES;
+        CoderResult res = dec.decode(ByteBuffer.wrap(head), CharBuffer.allocate(head.length), eof);
+        return res.isError() ? GB18030 : StandardCharsets.UTF_8;
     }
 
     private static long parseAmount(String inout, String amountYuan) {
@@ -81,11 +122,6 @@ public final class WeChatBillParser implements BillParser {
     }
 
     // ---- 一些 CSV/表头小工具（同你现有实现） ----
-    private static int findHeader(List<String[]> rows) {
-        for (int i = 0; i < Math.min(200, rows.size()); i++)
-            if (rows.get(i).length>0 && "交易时间".equals(rows.get(i)[0].trim())) return i;
-        throw new IllegalStateException("未找到表头：交易时间");
-    }
     private static Map<String,Integer> mapHeader(String[] header) {
         Map<String,Integer> m = new HashMap<>();
         for (int i=0;i<header.length;i++) { var h = header[i]==null? "": header[i].trim(); if (!h.isEmpty()) m.put(h,i); }
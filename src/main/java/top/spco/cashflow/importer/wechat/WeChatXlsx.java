@@ -15,19 +15,33 @@
  */
 package top.spco.cashflow.importer.wechat;
 
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
 import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
 import top.spco.cashflow.importer.core.UnifiedTxn;
 import top.spco.cashflow.util.StringUtil;
 
+import javax.xml.parsers.ParserConfigurationException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * 读取微信支付账单的 .xlsx，产出统一模型 UnifiedTxn 列表。
@@ -82,6 +96,177 @@ public final class WeChatXlsx {
         }
     }
 
+    /**
+     * 流式读取：基于 XSSFReader/SAX 事件模型逐行产出，不把整本工作簿加载为 DOM（大账单不会撑爆堆）。
+     * 表头识别（“交易时间”，前 100 行内）、日期单元格与金额解析规则与 {@link #read(File)} 相同。
+     */
+    public static void stream(File file, Consumer<? super UnifiedTxn> sink) throws IOException {
+        try (OPCPackage pkg = OPCPackage.open(file, PackageAccess.READ)) {
+            XSSFReader reader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+            var styles = reader.getStylesTable();
+            Iterator<InputStream> sheets = reader.getSheetsData();
+            while (sheets.hasNext()) {
+                // 优先第一个能找到“交易时间”表头的 sheet
+                CanonicalFormatter formatter = new CanonicalFormatter();
+                SheetRows rows = new SheetRows(sink, formatter);
+                try (InputStream sheet = sheets.next()) {
+                    XMLReader parser = XMLHelper.newXMLReader();
+                    parser.setContentHandler(new XSSFSheetXMLHandler(styles, strings, rows, formatter, false));
+                    parser.parse(new InputSource(sheet));
+                } catch (NoHeader ignore) {
+                    // 该表前 100 行没有表头，换下一个
+                }
+                if (rows.col != null) return;
+            }
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException e) {
+            throw new IOException("无法读取 xlsx：" + e.getMessage(), e);
+        }
+        throw new IllegalStateException("未找到包含“交易时间”表头的工作表");
+    }
+
+    /**
+     * 接收 SAX 事件的行处理器：先找表头，之后每行转换为 UnifiedTxn 直接交给 sink
+     */
+    private static final class SheetRows implements XSSFSheetXMLHandler.SheetContentsHandler {
+        private static final int HEADER_SCAN_ROWS = 100;
+
+        private final Consumer<? super UnifiedTxn> sink;
+        private final CanonicalFormatter formatter;
+        private String[] cells = new String[16]; // 当前行：列号 -> 文本
+        private long[] dates = new long[16];     // 当前行：列号 -> 日期单元格的毫秒值；NO_DATE 表示不是日期
+        private int nextCol;
+        Map<String, Integer> col;                // 表头：名称 -> 列号；null 表示尚未找到
+
+        SheetRows(Consumer<? super UnifiedTxn> sink, CanonicalFormatter formatter) {
+            this.sink = sink;
+            this.formatter = formatter;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            Arrays.fill(cells, null);
+            Arrays.fill(dates, CanonicalFormatter.NO_DATE);
+            nextCol = 0;
+        }
+
+        @Override
+        public void cell(String ref, String value, XSSFComment comment) {
+            int c = (ref == null) ? nextCol : columnOf(ref);
+            nextCol = c + 1;
+            if (c >= cells.length) {
+                int n = Math.max(c + 1, cells.length * 2);
+                cells = Arrays.copyOf(cells, n);
+                int old = dates.length;
+                dates = Arrays.copyOf(dates, n);
+                Arrays.fill(dates, old, n, CanonicalFormatter.NO_DATE);
+            }
+            cells[c] = (value == null) ? null : value.trim();
+            dates[c] = formatter.takeDate();
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if (col == null) {
+                if (rowNum > HEADER_SCAN_ROWS) throw new NoHeader();
+                for (String v : cells) {
+                    if ("交易时间".equals(v)) {
+                        col = new HashMap<>();
+                        for (int i = 0; i < cells.length; i++) {
+                            if (cells[i] != null && !cells[i].isBlank()) col.put(cells[i], i);
+                        }
+                        break;
+                    }
+                }
+                return;
+            }
+
+            // 时间：日期单元格直接取 CanonicalFormatter 记下的毫秒值（与 DOM 的 getDateCellValue 一致），文本单元格再解析
+            Integer ti = col.get("交易时间");
+            long ts;
+            if (ti != null && ti < dates.length && dates[ti] != CanonicalFormatter.NO_DATE) {
+                ts = dates[ti];
+            } else {
+                String tsStr = get("交易时间");
+                if (tsStr.isBlank()) return;
+                ts = parseTimestamp(tsStr);
+            }
+
+            // 收/支、金额
+            String inout = get("收/支"); // 可能为空
+            String amtStr = get("金额(元)");
+            if (amtStr.isBlank()) return;
+            long amountCents = parseAmountCents(inout, amtStr);
+            if (amountCents == 0) return;
+            // 交易对方 / 商品 / 备注
+            String payee = get("交易对方");
+            String item = get("商品");
+            String note = get("备注");
+            if (note.equals("/")) note = "";
+
+            sink.accept(new UnifiedTxn(ts, amountCents, payee, item, note));
+        }
+
+        private String get(String name) {
+            Integer i = col.get(name);
+            return (i == null || i >= cells.length || cells[i] == null) ? "" : cells[i];
+        }
+
+        // "AB12" -> 27
+        private static int columnOf(String ref) {
+            int c = 0;
+            for (int i = 0; i < ref.length(); i++) {
+                char ch = ref.charAt(i);
+                if (ch < 'A' || ch > 'Z') break;
+                c = c * 26 + (ch - 'A' + 1);
+            }
+            return c - 1;
+        }
+    }
+
+    /**
+     * 数值单元格的文本化与 {@link #str(Cell)} 保持一致：日期格式 -> TS_FMT[0]，其它数值 -> toPlainString。
+     * 日期单元格另外记下 {@link DateUtil#getJavaDate} 的毫秒值，供紧随其后的 cell 回调取走，避免经文本往返丢掉毫秒
+     */
+    private static final class CanonicalFormatter extends DataFormatter {
+        static final long NO_DATE = Long.MIN_VALUE;
+
+        private long date = NO_DATE;
+
+        /**
+         * 取走上一次格式化的日期毫秒值；字符串等未经格式化的单元格返回 NO_DATE
+         */
+        long takeDate() {
+            long d = date;
+            date = NO_DATE;
+            return d;
+        }
+
+        @Override
+        public String formatRawCellContents(double value, int formatIndex, String formatString) {
+            return formatRawCellContents(value, formatIndex, formatString, false);
+        }
+
+        @Override
+        public String formatRawCellContents(double value, int formatIndex, String formatString, boolean use1904Windowing) {
+            if (DateUtil.isADateFormat(formatIndex, formatString) && DateUtil.isValidExcelDate(value)) {
+                Date d = DateUtil.getJavaDate(value, use1904Windowing);
+                date = d.getTime();
+                return LocalDateTime.ofInstant(d.toInstant(), ZoneId.systemDefault()).format(TS_FMT[0]);
+            }
+            return BigDecimal.valueOf(value).toPlainString();
+        }
+    }
+
+    /**
+     * 前若干行内没有表头时中止当前 sheet 的解析
+     */
+    private static final class NoHeader extends RuntimeException {
+        NoHeader() {
+            super(null, null, false, false);
+        }
+    }
+
     // ---------- helpers ----------
 
     private static Sheet findSheetWithHeader(Workbook wb) {
@@ -17,30 +17,83 @@ package top.spco.cashflow.model;
 
 import javafx.beans.property.*;
 
+/**
+ * 表格中的一行。值直接存为字段（两个 long + 三个 String），JavaFX 属性只在首次调用 xxxProperty() 时才创建，
+ * 之后以属性为准；主表的单元格按值读取，不会为每行常驻 5 个属性对象。
+ */
 public final class RecordRow {
-    private final LongProperty timestampMs = new SimpleLongProperty();
-    private final LongProperty amountCents = new SimpleLongProperty();
-    private final StringProperty category    = new SimpleStringProperty();
-    private final StringProperty subCategory = new SimpleStringProperty();
-    private final StringProperty note        = new SimpleStringProperty();
+    private long timestampMs;
+    private long amountCents;
+    private String category;
+    private String subCategory;
+    private String note;
+    // 账本内的稳定行 ID（增量保存用），-1 表示尚未落盘
+    private long rowId = -1;
+    // 懒建的属性；绝大多数行始终为 null
+    private Props props;
+
+    private static final class Props {
+        LongProperty timestampMs;
+        LongProperty amountCents;
+        StringProperty category;
+        StringProperty subCategory;
+        StringProperty note;
+    }
 
     public RecordRow(long tsMs, long cents, String cat, String sub, String note) {
-        this.timestampMs.set(tsMs);
-        this.amountCents.set(cents);
-        this.category.set(cat == null ? "" : cat);
-        this.subCategory.set(sub == null ? "" : sub);
-        this.note.set(note == null ? "" : note);
-    }
-
-    public long getTimestampMs() { return timestampMs.get(); }
-    public long getAmountCents() { return amountCents.get(); }
-    public String getCategory()  { return category.get(); }
-    public String getSubCategory(){ return subCategory.get(); }
-    public String getNote()      { return note.get(); }
-
-    public LongProperty timestampMsProperty() { return timestampMs; }
-    public LongProperty amountCentsProperty() { return amountCents; }
-    public StringProperty categoryProperty()  { return category; }
-    public StringProperty subCategoryProperty(){ return subCategory; }
-    public StringProperty noteProperty()      { return note; }
+        this.timestampMs = tsMs;
+        this.amountCents = cents;
+        this.category = cat == null ? "" : cat;
+        this.subCategory = sub == null ? "" : sub;
+        this.note = note == null ? "" : note;
+    }
+
+    public long getTimestampMs() { return (props != null && props.timestampMs != null) ? props.timestampMs.get() : timestampMs; }
+    public long getAmountCents() { return (props != null && props.amountCents != null) ? props.amountCents.get() : amountCents; }
+    public String getCategory()  { return (props != null && props.category != null) ? props.category.get() : category; }
+    public String getSubCategory(){ return (props != null && props.subCategory != null) ? props.subCategory.get() : subCategory; }
+    public String getNote()      { return (props != null && props.note != null) ? props.note.get() : note; }
+    public long getRowId()       { return rowId; }
+    public void setRowId(long id) { this.rowId = id; }
+
+    public void setTimestampMs(long v) { if (props != null && props.timestampMs != null) props.timestampMs.set(v); else timestampMs = v; }
+    public void setAmountCents(long v) { if (props != null && props.amountCents != null) props.amountCents.set(v); else amountCents = v; }
+    public void setCategory(String v)  { if (props != null && props.category != null) props.category.set(v); else category = v; }
+    public void setSubCategory(String v){ if (props != null && props.subCategory != null) props.subCategory.set(v); else subCategory = v; }
+    public void setNote(String v)      { if (props != null && props.note != null) props.note.set(v); else note = v; }
+
+    public LongProperty timestampMsProperty() {
+        Props p = props();
+        if (p.timestampMs == null) p.timestampMs = new SimpleLongProperty(this, "timestampMs", timestampMs);
+        return p.timestampMs;
+    }
+
+    public LongProperty amountCentsProperty() {
+        Props p = props();
+        if (p.amountCents == null) p.amountCents = new SimpleLongProperty(this, "amountCents", amountCents);
+        return p.amountCents;
+    }
+
+    public StringProperty categoryProperty() {
+        Props p = props();
+        if (p.category == null) p.category = new SimpleStringProperty(this, "category", category);
+        return p.category;
+    }
+
+    public StringProperty subCategoryProperty() {
+        Props p = props();
+        if (p.subCategory == null) p.subCategory = new SimpleStringProperty(this, "subCategory", subCategory);
+        return p.subCategory;
+    }
+
+    public StringProperty noteProperty() {
+        Props p = props();
+        if (p.note == null) p.note = new SimpleStringProperty(this, "note", note);
+        return p.note;
+    }
+
+    private Props props() {
+        if (props == null) props = new Props();
+        return props;
+    }
 }
@@ -15,7 +15,10 @@
  */
 package top.spco.cashflow.service;
 
+import javafx.concurrent.Task;
+import top.spco.cashflow.data.CategoryTaxonomy;
 import top.spco.cashflow.data.LedgerIO;
+import top.spco.cashflow.data.LedgerJournal;
 import top.spco.cashflow.data.MonthlyLedger;
 import top.spco.cashflow.model.RecordRow;
 import top.spco.cashflow.viewmodel.LedgerViewModel;
@@ -23,59 +26,337 @@ import top.spco.cashflow.viewmodel.LedgerViewModel;
 import java.io.File;
 import java.io.IOException;
 import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * 打开/保存账本。
+ * <p>
+ * 保存时与上次落盘的内容逐行比对，只把新增/修改/删除的行追加到编辑日志（{@link LedgerJournal}），
+ * 落盘量与改动量成正比；换文件、换月份、分类树有日志无法表达的变化、或日志超过快照一半大小时，
+ * 才整体重写快照（顺带清空日志）。
+ * <p>
+ * {@link #openTask}/{@link #saveTask} 把文件 I/O 与行转换放到后台线程，结果再由 {@code apply} 在 FX 线程一次性写回；
+ * 同一实例的后台任务须串行执行。
+ */
 public final class LedgerFileService {
+    // 日志至少允许涨到这么大再合并，避免小账本频繁整体重写
+    private static final long MIN_JOURNAL_BUDGET = 64 * 1024;
+    // 打开时每转换这么多行汇报一次进度、检查一次取消
+    private static final int PROGRESS_STEP = 4096;
+
+    /**
+     * 上次落盘（或打开）时的内容，作为增量比对的基线；行号与 ids 一一对应
+     */
+    private record Baseline(File file, YearMonth yearMonth, MonthlyLedger ledger, CategoryTaxonomy taxonomy,
+                            long[] ids, Map<Long, Integer> rowOfId, long nextRowId,
+                            LedgerIO.Snapshot snapshot, long journalLength) {
+    }
+
+    /**
+     * 保存时在 FX 线程抓取的行快照，后台线程只读它，不碰 RecordRow 的属性
+     */
+    private record Row(long id, long ts, long amount, String category, String subCategory, String note) {
+    }
+
+    /**
+     * 后台读好的账本，交给 {@link #apply(Opened, LedgerViewModel, TaxonomyService)} 写回界面
+     */
+    public static final class Opened {
+        private final File file;
+        private final YearMonth yearMonth;
+        private final List<RecordRow> rows;
+        private final CategoryTaxonomy taxonomy;
+        private final Baseline baseline;
+
+        private Opened(File file, YearMonth yearMonth, List<RecordRow> rows, CategoryTaxonomy taxonomy, Baseline baseline) {
+            this.file = file;
+            this.yearMonth = yearMonth;
+            this.rows = rows;
+            this.taxonomy = taxonomy;
+            this.baseline = baseline;
+        }
+
+        public File file() {
+            return file;
+        }
+
+        public int size() {
+            return rows.size();
+        }
+    }
+
+    /**
+     * 后台保存的结果：各行被分配的行 ID，由 {@link #apply(Saved, LedgerViewModel)} 回填
+     */
+    public static final class Saved {
+        private final File file;
+        private final List<RecordRow> rows;
+        private final long[] ids;
+
+        private Saved(File file, List<RecordRow> rows, long[] ids) {
+            this.file = file;
+            this.rows = rows;
+            this.ids = ids;
+        }
+
+        public File file() {
+            return file;
+        }
+    }
+
+    private volatile Baseline baseline;
+
+    /**
+     * 在后台读取并转换；可取消（取消后结果为 null）
+     */
+    public Task<Opened> openTask(File f) {
+        return new OpenTask(f);
+    }
 
-    // 打开文件：灌入 VM & 分类服务
-    public void open(File f, LedgerViewModel vm, TaxonomyService tax) throws IOException {
+    private final class OpenTask extends Task<Opened> {
+        private final File file;
+
+        OpenTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected Opened call() throws IOException {
+            updateProgress(-1, 1);
+            return read(file, this);
+        }
+
+        void report(long done, long total) {
+            updateProgress(done, total);
+        }
+    }
+
+    private Opened read(File f, OpenTask task) throws IOException {
         LedgerIO.Bundle b = LedgerIO.load(f);
-        vm.getEntries().clear();
         int[] order = b.ledger.sortedIndicesByTimestampAsc();
-        for (int r : order) {
+        List<RecordRow> rows = new ArrayList<>(order.length);
+        for (int i = 0; i < order.length; i++) {
+            if (i % PROGRESS_STEP == 0) {
+                if (task.isCancelled()) return null;
+                task.report(i, order.length);
+            }
+            int r = order[i];
             var e = b.ledger.get(r);
             String cat = b.taxonomy.categoryName(e.categoryId());
             String sub = b.taxonomy.subName(e.categoryId(), e.subCategoryId());
-            vm.getEntries().add(new RecordRow(e.timestamp(), e.amountInCents(), cat, sub, e.noteUtf8()));
+            RecordRow row = new RecordRow(e.timestamp(), e.amountInCents(), cat, sub, e.noteUtf8());
+            row.setRowId(b.rowIds[r]);
+            rows.add(row);
         }
-        vm.setYearMonth(YearMonth.of(b.ledger.year(), b.ledger.month()));
-        vm.setCurrentFile(f);
-        tax.setTaxonomy(b.taxonomy);
+        YearMonth ym = YearMonth.of(b.ledger.year(), b.ledger.month());
+        Baseline base = new Baseline(f, ym, b.ledger, copyOf(b.taxonomy), b.rowIds, indexOf(b.rowIds),
+                b.nextRowId, b.snapshot, b.journalLength);
+        return new Opened(f, ym, rows, b.taxonomy, base);
+    }
+
+    /**
+     * FX 线程：经 {@link LedgerViewModel#loadEntries} 一次写回所有行
+     */
+    public void apply(Opened o, LedgerViewModel vm, TaxonomyService tax) {
+        vm.loadEntries(o.rows);
+        vm.setYearMonth(o.yearMonth);
+        vm.setCurrentFile(o.file);
+        tax.setTaxonomy(o.taxonomy);
         vm.clearDirty();
+        baseline = o.baseline;
+    }
+
+    /**
+     * FX 线程调用：先补全分类树并抓取行快照，返回的任务只做比对与写盘。
+     * saveAs 为 true 时总是写完整快照；成功后由 {@link #apply(Saved, LedgerViewModel)} 设置当前文件。
+     */
+    public Task<Saved> saveTask(File target, boolean saveAs, LedgerViewModel vm, TaxonomyService tax) {
+        Captured captured = capture(vm, tax);
+        return new Task<>() {
+            @Override
+            protected Saved call() throws IOException {
+                updateProgress(-1, 1);
+                if (saveAs) baseline = null;
+                return write(target, captured);
+            }
+        };
     }
 
-    // 保存（使用 VM.currentFile）——确保 taxonomy 覆盖所有行
-    public void save(LedgerViewModel vm, TaxonomyService tax) throws IOException {
-        File target = vm.getCurrentFile();
-        if (target == null) throw new IllegalStateException("保存前请先指定文件");
+    /**
+     * FX 线程：回填行 ID 并记录当前文件（不处理脏标记，保存期间可能又有修改）
+     */
+    public void apply(Saved s, LedgerViewModel vm) {
+        for (int i = 0; i < s.ids.length; i++) s.rows.get(i).setRowId(s.ids[i]);
+        vm.setCurrentFile(s.file);
+    }
+
+    private record Captured(YearMonth yearMonth, List<RecordRow> rows, List<Row> values, CategoryTaxonomy taxonomy) {
+    }
 
+    private static Captured capture(LedgerViewModel vm, TaxonomyService tax) {
         CategoryTaxonomyEnsureAll(vm.getEntries(), tax);
+        List<RecordRow> rows = List.copyOf(vm.getEntries());
+        List<Row> values = new ArrayList<>(rows.size());
+        for (RecordRow r : rows) {
+            values.add(new Row(r.getRowId(), r.getTimestampMs(), r.getAmountCents(), r.getCategory(), r.getSubCategory(), r.getNote()));
+        }
+        // 分类树拷贝一份：后台写盘期间界面仍可能往原分类树里追加
+        return new Captured(vm.getYearMonth(), rows, values, copyOf(tax.getTaxonomy()));
+    }
+
+    private synchronized Saved write(File target, Captured c) throws IOException {
+        long[] ids = saveIncrementally(target, c.yearMonth(), c.values(), c.taxonomy());
+        if (ids == null) ids = saveSnapshot(target, c.yearMonth(), c.values(), c.taxonomy());
+        return new Saved(target, c.rows(), ids);
+    }
+
+    private long[] saveSnapshot(File target, YearMonth ym, List<Row> rows, CategoryTaxonomy taxonomy) throws IOException {
+        MonthlyLedger ledger = toLedger(ym, rows, taxonomy);
+        // 完整快照按时间排好序再写，打开时免排序，区间查询可走二分
+        int[] order = ledger.sortByTime();
+        baseline = null;
+        LedgerIO.Snapshot snapshot = LedgerIO.save(ledger, taxonomy, target);
+        // 快照中的行 ID 即行号：rowIds 按文件行排列，返回值按抓取时的行排列
+        long[] rowIds = new long[rows.size()];
+        long[] ids = new long[rows.size()];
+        for (int k = 0; k < order.length; k++) {
+            rowIds[k] = k;
+            ids[order[k]] = k;
+        }
+        baseline = new Baseline(target, ym, ledger, taxonomy, rowIds, indexOf(rowIds), rowIds.length, snapshot, 0);
+        return ids;
+    }
+
+    /**
+     * 尝试只追加日志，返回各行的行 ID；不满足增量条件时返回 null（不做任何写入）
+     */
+    private long[] saveIncrementally(File target, YearMonth ym, List<Row> rows, CategoryTaxonomy taxonomy) throws IOException {
+        Baseline base = baseline;
+        if (base == null || base.snapshot() == null || !base.file().equals(target) || !base.yearMonth().equals(ym)) return null;
+        long budget = Math.max(MIN_JOURNAL_BUDGET, base.snapshot().length() / 2);
+        if (base.journalLength() > budget) return null;
+
+        List<LedgerJournal.Op> ops = new ArrayList<>();
+        boolean[] seen = new boolean[base.ids().length];
+        long nextId = base.nextRowId();
+        long[] newIds = new long[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            Row r = rows.get(i);
+            Integer row = base.rowOfId().get(r.id());
+            if (row == null || seen[row]) {
+                long id = nextId++;
+                newIds[i] = id;
+                ops.add(new LedgerJournal.Add(id, r.ts(), r.amount(), r.category(), r.subCategory(), r.note()));
+                continue;
+            }
+            seen[row] = true;
+            newIds[i] = r.id();
+            if (!sameAs(base, row, r)) {
+                ops.add(new LedgerJournal.Update(r.id(), r.ts(), r.amount(), r.category(), r.subCategory(), r.note()));
+            }
+        }
+        for (int row = 0; row < seen.length; row++) {
+            if (!seen[row]) ops.add(new LedgerJournal.Delete(base.ids()[row]));
+        }
+
+        // 回放日志时分类树按操作顺序追加新名字；结果与当前分类树不一致（改名、删类、空类别等）就只能整体重写
+        CategoryTaxonomy replayed = copyOf(base.taxonomy());
+        for (LedgerJournal.Op op : ops) {
+            switch (op) {
+                case LedgerJournal.Add a -> replayed.subIdOf(replayed.categoryIdOf(a.category()), a.subCategory());
+                case LedgerJournal.Update u -> replayed.subIdOf(replayed.categoryIdOf(u.category()), u.subCategory());
+                case LedgerJournal.Delete d -> {
+                }
+            }
+        }
+        if (!sameTaxonomy(replayed, taxonomy)) return null;
 
-        YearMonth ym = vm.getYearMonth();
-        List<RecordRow> rows = vm.getEntries();
+        long length = LedgerJournal.append(target, base.snapshot(), base.journalLength(), ops);
+        baseline = applyToBaseline(base, ops, replayed, nextId, length);
+        return newIds;
+    }
+
+    /**
+     * 日志写成功后，把同样的操作原地套用到基线账本上（与下次打开时回放的结果一致），不再由各行重建账本
+     */
+    private static Baseline applyToBaseline(Baseline base, List<LedgerJournal.Op> ops, CategoryTaxonomy taxonomy,
+                                            long nextId, long journalLength) {
+        MonthlyLedger ledger = base.ledger();
+        long[] ids = Arrays.copyOf(base.ids(), base.ids().length + ops.size());
+        for (LedgerJournal.Op op : ops) {
+            switch (op) {
+                case LedgerJournal.Add a -> {
+                    long key = taxonomy.pairKeyOf(a.category(), a.subCategory());
+                    ids[ledger.add(a.timestampMs(), a.amountCents(), CategoryTaxonomy.catOf(key), CategoryTaxonomy.subOf(key), a.note())] = a.id();
+                }
+                case LedgerJournal.Update u -> {
+                    long key = taxonomy.pairKeyOf(u.category(), u.subCategory());
+                    ledger.set(base.rowOfId().get(u.id()), u.timestampMs(), u.amountCents(), CategoryTaxonomy.catOf(key), CategoryTaxonomy.subOf(key), u.note());
+                }
+                case LedgerJournal.Delete d -> ledger.delete(base.rowOfId().get(d.id()));
+            }
+        }
+        long[] liveIds;
+        if (ledger.deletedRows() > 0) {
+            int[] old = ledger.compact();
+            liveIds = new long[old.length];
+            for (int r = 0; r < old.length; r++) liveIds[r] = ids[old[r]];
+        } else {
+            liveIds = Arrays.copyOf(ids, ledger.size());
+        }
+        return new Baseline(base.file(), base.yearMonth(), ledger, taxonomy, liveIds, indexOf(liveIds), nextId, base.snapshot(), journalLength);
+    }
+
+    private static MonthlyLedger toLedger(YearMonth ym, List<Row> rows, CategoryTaxonomy taxonomy) {
         MonthlyLedger ledger = MonthlyLedger.of(ym, Math.max(32, rows.size()), Math.max(256, rows.size() * 16));
-        for (RecordRow r : rows) {
-            int catId = tax.getTaxonomy().categoryIdOf(r.getCategory());
-            int subId = tax.getTaxonomy().subIdOf(catId, r.getSubCategory());
-            ledger.add(r.getTimestampMs(), r.getAmountCents(), catId, subId, r.getNote());
+        for (Row r : rows) {
+            long key = taxonomy.pairKeyOf(r.category(), r.subCategory());
+            ledger.add(r.ts(), r.amount(), CategoryTaxonomy.catOf(key), CategoryTaxonomy.subOf(key), r.note());
         }
-        LedgerIO.save(ledger, tax.getTaxonomy(), target);
-        vm.clearDirty();
+        return ledger;
     }
 
-    // 首次保存（Save As）用
-    public void saveAs(File file, LedgerViewModel vm, TaxonomyService tax) throws IOException {
-        vm.setCurrentFile(file);
-        save(vm, tax);
+    private static boolean sameAs(Baseline base, int row, Row r) {
+        var e = base.ledger().get(row);
+        return e.timestamp() == r.ts()
+                && e.amountInCents() == r.amount()
+                && base.taxonomy().categoryName(e.categoryId()).equals(r.category())
+                && base.taxonomy().subName(e.categoryId(), e.subCategoryId()).equals(r.subCategory())
+                && e.noteUtf8().equals(r.note());
+    }
+
+    private static boolean sameTaxonomy(CategoryTaxonomy a, CategoryTaxonomy b) {
+        if (a.categoryCount() != b.categoryCount()) return false;
+        for (int c = 0; c < a.categoryCount(); c++) {
+            if (!a.categoryName(c).equals(b.categoryName(c)) || a.subCount(c) != b.subCount(c)) return false;
+            for (int s = 0; s < a.subCount(c); s++) {
+                if (!a.subName(c, s).equals(b.subName(c, s))) return false;
+            }
+        }
+        return true;
+    }
+
+    private static CategoryTaxonomy copyOf(CategoryTaxonomy t) {
+        List<List<String>> subs = new ArrayList<>(t.categoryCount());
+        for (String c : t.categories()) subs.add(t.subsOf(c));
+        return new CategoryTaxonomy(t.categories(), subs);
+    }
+
+    private static Map<Long, Integer> indexOf(long[] ids) {
+        Map<Long, Integer> m = new HashMap<>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) m.put(ids[i], i);
+        return m;
     }
 
     private static void CategoryTaxonomyEnsureAll(List<RecordRow> rows, TaxonomyService tax) {
         if (tax.getTaxonomy() == null || tax.getTaxonomy().categoryCount() == 0) {
             tax.setTaxonomy(TaxonomyService.buildFromRows(rows));
         }
-        for (RecordRow r : rows) {
-            tax.ensure(r.getCategory(), r.getSubCategory());
-        }
+        tax.ensureAll(rows);
         if (tax.getTaxonomy().categoryCount() == 0)
             throw new IllegalStateException("文件必须至少包含一个类别");
         for (int c = 0; c < tax.getTaxonomy().categoryCount(); c++) {
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2025 SpCo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package top.spco.cashflow.service;
+
+import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
+import top.spco.cashflow.data.LedgerQuery;
+import top.spco.cashflow.model.RecordRow;
+import top.spco.cashflow.util.Amounts;
+import top.spco.cashflow.util.Dates;
+
+import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
+
+/**
+ * 主表的全文搜索索引，跟随条目列表增量维护。
+ * <p>
+ * 每行占一个槽位，按列保存时间、金额、类别、子类，以及一个小写的搜索键（日期时间、金额（元）、类别、子类、备注，以换行分隔），
+ * 并为键中的每个二元字符组（bigram）记录倒排表。查询时取各词中倒排表最短的 bigram 作为候选，
+ * 再逐一校验，语义与逐行格式化后做子串匹配相同，但不再格式化任何一行。
+ * <p>
+ * 删除的行只把槽位置空，倒排表里的旧条目留到校验时过滤；陈旧条目过多时整体重建。
+ * <p>
+ * 索引本身只在 FX 线程上使用；{@link #snapshot()} 得到的快照可交给后台线程执行查询，
+ * 结果再由 {@link #predicate} 回到 FX 线程转换为行判定。快照之后才加入或改动的行由判定当场校验，
+ * 因此索引须先于 FilteredList 向列表注册监听。
+ */
+public final class SearchIndex {
+    private static final char FIELD_SEP = '\n';
+
+    private final IdentityHashMap<RecordRow, Integer> slotOf = new IdentityHashMap<>();
+    private Columns cols = new Columns(64);
+    // 每个槽位写入时的代数；判定据此识别快照之后才写入的槽位
+    private int[] gen = new int[64];
+    private int generation = 0;
+    private final ArrayDeque<Integer> free = new ArrayDeque<>();
+    private Map<Integer, Postings> postings = new HashMap<>();
+    private int staleRows = 0;
+
+    public SearchIndex(ObservableList<RecordRow> entries) {
+        rebuild(entries);
+        entries.addListener((ListChangeListener<RecordRow>) c -> {
+            boolean bulk = false;
+            while (c.next()) {
+                if (c.wasPermutated() || c.wasUpdated()) continue; // 顺序变化不影响索引
+                if (c.getRemovedSize() > slotOf.size() / 2 && c.getAddedSize() > 0) {
+                    bulk = true; // setAll 之类的整体替换：直接重建更快
+                    continue;
+                }
+                for (RecordRow r : c.getRemoved()) remove(r);
+                for (RecordRow r : c.getAddedSubList()) add(r);
+            }
+            if (bulk || staleRows > Math.max(1024, slotOf.size())) rebuild(c.getList());
+        });
+    }
+
+    /**
+     * 行内容被原地修改（如类别改名）后调用
+     */
+    public void update(RecordRow r) {
+        if (!slotOf.containsKey(r)) return;
+        remove(r);
+        add(r);
+    }
+
+    public void rebuild(List<? extends RecordRow> entries) {
+        slotOf.clear();
+        // 换新的倒排表而不是清空：已发出的快照可能还在读旧的
+        postings = new HashMap<>();
+        free.clear();
+        int cap = Math.max(64, entries.size());
+        cols = new Columns(cap);
+        gen = new int[cap];
+        staleRows = 0;
+        for (RecordRow r : entries) add(r);
+    }
+
+    /**
+     * 冻结当前内容供后台查询。列数组整体复制；倒排表只记下各表当前长度，
+     * 因为索引对倒排表只做追加（扩容时换新数组），快照读到的前缀不会再被改写
+     */
+    public Snapshot snapshot() {
+        Map<Integer, Postings> frozen = new HashMap<>(postings.size() * 2);
+        for (Map.Entry<Integer, Postings> e : postings.entrySet()) {
+            Postings p = e.getValue();
+            frozen.put(e.getKey(), new Postings(p.slots, p.size));
+        }
+        return new Snapshot(cols.copy(), frozen, ++generation);
+    }
+
+    /**
+     * 把快照上的查询结果转换为行判定（FX 线程）
+     */
+    public Predicate<RecordRow> predicate(Hits hits, LedgerQuery query) {
+        if (query.isEmpty()) return r -> true;
+        return r -> {
+            Integer s = slotOf.get(r);
+            if (s == null) return false;
+            return (gen[s] < hits.asOf) ? hits.slots.get(s) : cols.matches(s, query);
+        };
+    }
+
+    private void add(RecordRow r) {
+        if (slotOf.containsKey(r)) return;
+        int s;
+        if (!free.isEmpty()) {
+            s = free.poll();
+        } else {
+            if (cols.slots == cols.keys.length) {
+                int cap = cols.keys.length + (cols.keys.length >>> 1);
+                cols.grow(cap);
+                gen = Arrays.copyOf(gen, cap);
+            }
+            s = cols.slots++;
+        }
+        cols.set(s, r);
+        gen[s] = generation;
+        slotOf.put(r, s);
+        String key = cols.keys[s];
+        for (int i = 0; i + 1 < key.length(); i++) {
+            postings.computeIfAbsent(gram(key.charAt(i), key.charAt(i + 1)), k -> new Postings()).add(s);
+        }
+    }
+
+    private void remove(RecordRow r) {
+        Integer s = slotOf.remove(r);
+        if (s == null) return;
+        cols.keys[s] = null;
+        free.add(s);
+        staleRows++;
+    }
+
+    private static int gram(char a, char b) {
+        return (a << 16) | b;
+    }
+
+    /**
+     * 冻结的索引内容，可在任意线程上查询
+     */
+    public static final class Snapshot {
+        private final Columns cols;
+        private final Map<Integer, Postings> postings;
+        private final int asOf;
+
+        private Snapshot(Columns cols, Map<Integer, Postings> postings, int asOf) {
+            this.cols = cols;
+            this.postings = postings;
+            this.asOf = asOf;
+        }
+
+        /**
+         * 执行查询；cancelled 返回 true 时尽快放弃并返回 null
+         */
+        public Hits search(LedgerQuery query, BooleanSupplier cancelled) {
+            BitSet hits = new BitSet(cols.slots);
+            Postings candidates = candidates(query);
+            if (candidates == null) {
+                for (int s = 0; s < cols.slots; s++) {
+                    if ((s & 0xFFF) == 0 && cancelled.getAsBoolean()) return null;
+                    if (cols.matches(s, query)) hits.set(s);
+                }
+            } else {
+                for (int i = 0; i < candidates.size; i++) {
+                    if ((i & 0xFFF) == 0 && cancelled.getAsBoolean()) return null;
+                    int s = candidates.slots[i];
+                    if (s < cols.slots && !hits.get(s) && cols.matches(s, query)) hits.set(s);
+                }
+            }
+            return new Hits(hits, asOf);
+        }
+
+        /**
+         * 所有文本词（全文词、备注词）里倒排表最短的 bigram；没有可用的 bigram 时返回 null（全表扫描）
+         */
+        private Postings candidates(LedgerQuery query) {
+            Postings rarest = null;
+            for (List<String> terms : List.of(query.textTerms(), query.noteTerms())) {
+                for (String t : terms) {
+                    for (int i = 0; i + 1 < t.length(); i++) {
+                        Postings p = postings.get(gram(t.charAt(i), t.charAt(i + 1)));
+                        if (p == null) return Postings.EMPTY; // 有 bigram 从未出现过：必无结果
+                        if (rarest == null || p.size < rarest.size) rarest = p;
+                    }
+                }
+            }
+            return rarest;
+        }
+    }
+
+    /**
+     * 快照上的查询结果（命中槽位）
+     */
+    public static final class Hits {
+        private final BitSet slots;
+        private final int asOf;
+
+        private Hits(BitSet slots, int asOf) {
+            this.slots = slots;
+            this.asOf = asOf;
+        }
+
+        public int count() {
+            return slots.cardinality();
+        }
+    }
+
+    /**
+     * 按槽位对齐的列；keys[s] == null 表示空槽
+     */
+    private static final class Columns {
+        String[] keys;
+        int[] noteAt; // 备注在搜索键中的起始下标
+        long[] ts;
+        long[] amount;
+        String[] cat;
+        String[] sub;
+        int slots;
+
+        Columns(int cap) {
+            keys = new String[cap];
+            noteAt = new int[cap];
+            ts = new long[cap];
+            amount = new long[cap];
+            cat = new String[cap];
+            sub = new String[cap];
+        }
+
+        void grow(int cap) {
+            keys = Arrays.copyOf(keys, cap);
+            noteAt = Arrays.copyOf(noteAt, cap);
+            ts = Arrays.copyOf(ts, cap);
+            amount = Arrays.copyOf(amount, cap);
+            cat = Arrays.copyOf(cat, cap);
+            sub = Arrays.copyOf(sub, cap);
+        }
+
+        Columns copy() {
+            Columns c = new Columns(0);
+            c.keys = Arrays.copyOf(keys, slots);
+            c.noteAt = Arrays.copyOf(noteAt, slots);
+            c.ts = Arrays.copyOf(ts, slots);
+            c.amount = Arrays.copyOf(amount, slots);
+            c.cat = Arrays.copyOf(cat, slots);
+            c.sub = Arrays.copyOf(sub, slots);
+            c.slots = slots;
+            return c;
+        }
+
+        void set(int s, RecordRow r) {
+            ts[s] = r.getTimestampMs();
+            amount[s] = r.getAmountCents();
+            cat[s] = r.getCategory();
+            sub[s] = r.getSubCategory();
+            String head = (Dates.formatDateTime(ts[s]) + FIELD_SEP + Amounts.formatYuan(amount[s]) + FIELD_SEP
+                    + cat[s] + FIELD_SEP + sub[s] + FIELD_SEP).toLowerCase();
+            noteAt[s] = head.length();
+            keys[s] = head + r.getNote().toLowerCase();
+        }
+
+        /**
+         * 先比较原始列，再比较类别，最后才做子串匹配
+         */
+        boolean matches(int s, LedgerQuery q) {
+            String key = keys[s];
+            if (key == null) return false;
+            if (!q.matchesColumns(ts[s], amount[s], cat[s], sub[s])) return false;
+            for (String t : q.noteTerms()) {
+                if (key.indexOf(t, noteAt[s]) < 0) return false;
+            }
+            for (String t : q.textTerms()) {
+                if (!key.contains(t)) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 可增长的槽位列表；同一行内重复的 bigram 只记一次（追加时与末尾比较即可，因为同一行的槽位连续写入）
+     */
+    private static final class Postings {
+        static final Postings EMPTY = new Postings(new int[0], 0);
+
+        int[] slots;
+        int size;
+
+        Postings() {
+            this(new int[4], 0);
+        }
+
+        Postings(int[] slots, int size) {
+            this.slots = slots;
+            this.size = size;
+        }
+
+        void add(int slot) {
+            if (size > 0 && slots[size - 1] == slot) return;
+            if (size == slots.length) slots = Arrays.copyOf(slots, size << 1);
+            slots[size++] = slot;
+        }
+    }
+}
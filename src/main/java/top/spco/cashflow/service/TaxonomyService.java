@@ -49,13 +49,42 @@ public final class TaxonomyService {
         return subsByCat.getOrDefault(cat, FXCollections.observableArrayList());
     }
 
-    // 并入新类别/子类
-    public void ensure(String cat, String sub) {
+    /**
+     * 并入新类别/子类；只在确有新增时追加对应的候选列表项，返回是否有变化
+     */
+    public boolean ensure(String cat, String sub) {
         String c = safe(cat), s = safe(sub);
-        if (c.isEmpty() || s.isEmpty()) return;
+        if (c.isEmpty() || s.isEmpty()) return false;
+        boolean newCat = taxonomy.indexOfCategory(c) < 0;
         int catId = taxonomy.categoryIdOf(c); // 不存在则追加
+        if (!newCat && taxonomy.indexOfSub(catId, s) >= 0) return false;
         taxonomy.subIdOf(catId, s);           // 不存在则追加
-        rebuildChoices();                     // 刷新候选
+        if (newCat) categories.add(c);
+        subsByCat.computeIfAbsent(c, k -> FXCollections.observableArrayList()).add(s);
+        return true;
+    }
+
+    /**
+     * 批量并入：先更新分类树，再对每个受影响的候选列表只做一次 addAll（每个列表至多一次变更通知）
+     */
+    public boolean ensureAll(Collection<RecordRow> rows) {
+        List<String> newCats = new ArrayList<>();
+        Map<String, List<String>> newSubs = new LinkedHashMap<>();
+        for (RecordRow r : rows) {
+            String c = safe(r.getCategory()), s = safe(r.getSubCategory());
+            if (c.isEmpty() || s.isEmpty()) continue;
+            boolean newCat = taxonomy.indexOfCategory(c) < 0;
+            int catId = taxonomy.categoryIdOf(c);
+            if (newCat) newCats.add(c);
+            if (taxonomy.indexOfSub(catId, s) >= 0) continue;
+            taxonomy.subIdOf(catId, s);
+            newSubs.computeIfAbsent(c, k -> new ArrayList<>()).add(s);
+        }
+        if (!newCats.isEmpty()) categories.addAll(newCats);
+        for (Map.Entry<String, List<String>> e : newSubs.entrySet()) {
+            subsByCat.computeIfAbsent(e.getKey(), k -> FXCollections.observableArrayList()).addAll(e.getValue());
+        }
+        return !newCats.isEmpty() || !newSubs.isEmpty();
     }
 
     // 工具：是否有记录引用（供删除校验）
@@ -37,20 +37,33 @@ import org.apache.poi.ss.usermodel.DataFormat;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import top.spco.cashflow.data.CategoryTaxonomy;
+import top.spco.cashflow.data.LedgerAggregate;
 import top.spco.cashflow.data.LedgerIO;
-import top.spco.cashflow.data.MonthlyLedger;
+import top.spco.cashflow.data.LedgerStore;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.file.Path;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
 
 import static top.spco.cashflow.util.POIUtil.*;
 
@@ -61,14 +74,21 @@ public final class LedgerAnalyzer {
 
     private static final DecimalFormat YUAN_FMT = new DecimalFormat("#,##0.00");
     private static final DecimalFormat PCT_FMT = new DecimalFormat("0.00%");
+    // 合并分析时同时读取的文件数上限
+    private static final int ANALYZE_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
 
     private LedgerAnalyzer() {
     }
 
     public static void showAnalysis(Stage owner, File file) throws IOException {
-        LedgerIO.Bundle bundle = LedgerIO.load(file);
-        Analysis a = analyzeBundle(bundle);
+        Analysis a = finish(tally(file));
+        show(owner, "分析 - " + file.getName(), defaultExportName(file), a);
+    }
 
+    /**
+     * 展示分析结果窗口（FX 线程）
+     */
+    static void show(Stage owner, String title, String exportName, Analysis a) {
         // 三个视图
         SubShareView subShareView = buildSubShareView(a);
         Tab detailsTab = buildDetailsTab(a, catName -> {
@@ -83,13 +103,13 @@ public final class LedgerAnalyzer {
         // 窗口
         Stage stage = new Stage();
         stage.initOwner(owner);
-        stage.setTitle("分析 - " + file.getName());
+        stage.setTitle(title);
 
-        // 导出按钮（直接捕获上面的 stage 与 file）
+        // 导出按钮（直接捕获上面的 stage）
         Button btnExport = new Button("导出为 Excel");
         btnExport.setOnAction(e -> {
             try {
-                exportAnalysisToXlsx(stage, defaultExportName(file), a);
+                exportAnalysisToXlsx(stage, exportName, a);
                 new Alert(Alert.AlertType.INFORMATION, "导出完成").showAndWait();
             } catch (Exception ex) {
                 new Alert(Alert.AlertType.ERROR, "导出失败：" + ex.getMessage()).showAndWait();
@@ -114,51 +134,131 @@ public final class LedgerAnalyzer {
     }
 
     // === 统计计算 ===
-    private static Analysis analyzeBundle(LedgerIO.Bundle b) {
+
+    /**
+     * 合并分析多个账本：每个文件一个任务，在专用的小线程池里并行读取并汇总，再按类别/子类名称合并
+     * （各文件的分类树可以不同）。读文件是阻塞 I/O，不占用公共 ForkJoinPool。
+     * 在后台线程调用；该线程被中断（任务取消）时放弃未完成的文件并抛出 InterruptedIOException
+     */
+    static Analysis analyzeFiles(List<File> files) throws IOException {
+        List<Callable<Analysis>> jobs = new ArrayList<>(files.size());
+        for (File f : files) jobs.add(() -> tally(f));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(files.size(), ANALYZE_THREADS)), r -> {
+            Thread t = new Thread(r, "cashflow-analyze");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<Analysis>> done = pool.invokeAll(jobs);
+            List<Analysis> parts = new ArrayList<>(done.size());
+            for (int i = 0; i < done.size(); i++) {
+                try {
+                    parts.add(done.get(i).get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw new IOException(files.get(i).getName() + "：" + cause.getMessage(), cause);
+                }
+            }
+            return finish(merge(parts));
+        } catch (InterruptedException e) {
+            // invokeAll 被中断时已取消尚未完成的任务
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("分析已中断");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * 分析账本目录（{@link LedgerStore}）中的全部月份：各月取段文件尾部的汇总段，按名称合并，
+     * 只有汇总段缺失或过期的月份才加载行数据，且每段至多加载一次。
+     * 目录以只读方式打开，不会写入索引；与其它文件同月的重复文件不计入，随结果一并返回。在后台线程调用
+     */
+    static StoreAnalysis analyzeStore(Path dir) throws IOException {
+        LedgerStore store = LedgerStore.openReadOnly(dir);
+        List<Analysis> parts = new ArrayList<>();
+        for (LedgerStore.Segment s : store.segments()) {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("分析已中断");
+            LedgerIO.Summary summary = store.summary(s.yearMonth());
+            parts.add(tally(summary.taxonomy(), summary.aggregate()));
+        }
+        return new StoreAnalysis(finish(merge(parts)), store.skippedFiles());
+    }
+
+    /**
+     * 多文件分析窗口的默认导出名
+     */
+    static String defaultExportName(List<File> files) {
+        return (files.size() == 1) ? defaultExportName(files.get(0)) : "合并" + files.size() + "个账本-分析.xlsx";
+    }
+
+    /**
+     * 单个账本的汇总（尚未计算占比与平均值）。优先直接使用文件尾部保存的汇总段，不读行数据；
+     * 汇总段缺失或已过期时才加载整个账本，在原始列上一次遍历汇总（{@link LedgerAggregate}）
+     */
+    private static Analysis tally(File file) throws IOException {
+        LedgerIO.Summary summary = LedgerIO.loadSummary(file);
+        if (summary != null) return tally(summary.taxonomy(), summary.aggregate());
+        LedgerIO.Bundle b = LedgerIO.load(file);
+        return tally(b.taxonomy, LedgerAggregate.of(b.ledger, b.taxonomy));
+    }
+
+    /**
+     * 按名称组装展示用的 Stat。类别、子类按首次出现的时间先后排列；分类树里同名的条目合并统计
+     */
+    private static Analysis tally(CategoryTaxonomy tax, LedgerAggregate agg) {
         Map<String, Stat> catStats = new LinkedHashMap<>();
         Map<String, Map<String, Stat>> subStats = new LinkedHashMap<>();
-        long totalIncome = 0L;     // >0 的和（分）
-        long totalExpenseAbs = 0L; // 所有支出绝对值之和（分）
-        long netCents = 0L;        // 净额（分）
-        long count = 0L;
-
-        int[] order = b.ledger.sortedIndicesByTimestampAsc();
-        for (int idx : order) {
-            MonthlyLedger.EntryView e = b.ledger.get(idx);
-            String cat = b.taxonomy.categoryName(e.categoryId());
-            String sub = b.taxonomy.subName(e.categoryId(), e.subCategoryId());
-            long amount = e.amountInCents();
-            boolean income = amount > 0;
-
-            Stat cs = catStats.computeIfAbsent(cat, k -> new Stat(cat, null));
-            Stat ss = subStats.computeIfAbsent(cat, k -> new LinkedHashMap<>()).computeIfAbsent(sub, k -> new Stat(cat, sub));
-
-            for (Stat s : List.of(cs, ss)) {
-                s.count++;
-                s.netCents += amount;
-                if (income) {
-                    s.incomeCents += amount;
-                } else {
-                    s.expenseCents += amount;          // 负数累计
-                    s.expenseCount++;
-                    if (amount < s.maxExpenseCents) {  // 更“负”的视为更大支出
-                        s.maxExpenseCents = amount;
-                    }
-                }
+        for (int c : byFirstSeen(agg, tax.categoryCount(), agg::categoryBucket)) {
+            String cat = tax.categoryName(c);
+            catStats.computeIfAbsent(cat, k -> new Stat(cat, null)).absorb(agg, agg.categoryBucket(c));
+            Map<String, Stat> subs = subStats.computeIfAbsent(cat, k -> new LinkedHashMap<>());
+            for (int s : byFirstSeen(agg, tax.subCount(c), k -> agg.subBucket(c, k))) {
+                String sub = tax.subName(c, s);
+                subs.computeIfAbsent(sub, k -> new Stat(cat, sub)).absorb(agg, agg.subBucket(c, s));
             }
+        }
+        return new Analysis(catStats, subStats, agg.totalIncome(), agg.totalExpenseAbs(), agg.net(), agg.rows());
+    }
 
-            if (income) totalIncome += amount;
-            else totalExpenseAbs += -amount;
-            netCents += amount;
-            count++;
+    /**
+     * 按名称合并多个汇总，合并后仍按首次出现的时间先后排列
+     */
+    private static Analysis merge(List<Analysis> parts) {
+        Map<String, Stat> catStats = new HashMap<>();
+        Map<String, Map<String, Stat>> subStats = new HashMap<>();
+        long income = 0, expenseAbs = 0, net = 0, count = 0;
+        for (Analysis p : parts) {
+            for (Stat s : p.catStats().values()) {
+                catStats.computeIfAbsent(s.category, k -> new Stat(s.category, null)).absorb(s);
+            }
+            for (Map<String, Stat> m : p.subStats().values()) {
+                for (Stat s : m.values()) {
+                    subStats.computeIfAbsent(s.category, k -> new HashMap<>())
+                            .computeIfAbsent(s.subCategory, k -> new Stat(s.category, s.subCategory)).absorb(s);
+                }
+            }
+            income += p.totalIncome();
+            expenseAbs += p.totalExpenseAbs();
+            net += p.netCents();
+            count += p.count();
         }
+        Map<String, Stat> orderedCats = byFirstSeen(catStats);
+        Map<String, Map<String, Stat>> orderedSubs = new LinkedHashMap<>();
+        for (String cat : orderedCats.keySet()) orderedSubs.put(cat, byFirstSeen(subStats.getOrDefault(cat, Map.of())));
+        return new Analysis(orderedCats, orderedSubs, income, expenseAbs, net, count);
+    }
 
-        // 占比（按支出）与平均支出（仅负数）
-        for (Stat s : catStats.values()) {
+    /**
+     * 计算占比（按支出）与平均支出（仅负数）
+     */
+    private static Analysis finish(Analysis a) {
+        long totalExpenseAbs = a.totalExpenseAbs();
+        for (Stat s : a.catStats().values()) {
             s.expenseShare = (totalExpenseAbs == 0) ? 0d : (Math.abs(s.expenseCents) * 1.0) / totalExpenseAbs;  // 类别在全局支出占比
             s.avgExpenseCents = avgHalfUp(s.expenseCents, s.expenseCount);
         }
-        for (Map<String, Stat> m : subStats.values()) {
+        for (Map<String, Stat> m : a.subStats().values()) {
             long catExpenseAbs = 0L;
             for (Stat s : m.values()) catExpenseAbs += Math.abs(s.expenseCents);
             for (Stat s : m.values()) {
@@ -166,8 +266,27 @@ public final class LedgerAnalyzer {
                 s.avgExpenseCents = avgHalfUp(s.expenseCents, s.expenseCount);
             }
         }
+        return a;
+    }
 
-        return new Analysis(catStats, subStats, totalIncome, totalExpenseAbs, netCents, count);
+    /**
+     * 非空桶的 ID（0..n-1 中），按桶内最早时间戳升序
+     */
+    private static int[] byFirstSeen(LedgerAggregate agg, int n, IntUnaryOperator bucketOf) {
+        return IntStream.range(0, n)
+                .filter(i -> agg.count(bucketOf.applyAsInt(i)) > 0)
+                .boxed()
+                .sorted(Comparator.comparingLong(i -> agg.firstTimestamp(bucketOf.applyAsInt(i))))
+                .mapToInt(Integer::intValue)
+                .toArray();
+    }
+
+    private static Map<String, Stat> byFirstSeen(Map<String, Stat> stats) {
+        Map<String, Stat> out = new LinkedHashMap<>();
+        stats.values().stream()
+                .sorted(Comparator.comparingLong(s -> s.firstTs))
+                .forEach(s -> out.put(s.subCategory != null ? s.subCategory : s.category, s));
+        return out;
     }
 
     private static long avgHalfUp(long sumCents, long count) {
@@ -400,10 +519,16 @@ public final class LedgerAnalyzer {
      * @param totalExpenseAbs 分（绝对值）
      * @param netCents        分
      */
-    private record Analysis(Map<String, Stat> catStats, Map<String, Map<String, Stat>> subStats, long totalIncome,
+    record Analysis(Map<String, Stat> catStats, Map<String, Map<String, Stat>> subStats, long totalIncome,
                             long totalExpenseAbs, long netCents, long count) {
     }
 
+    /**
+     * @param skippedFiles 因与其它文件同月而未计入的文件名
+     */
+    record StoreAnalysis(Analysis analysis, List<String> skippedFiles) {
+    }
+
     private static final class Stat {
         final String category;
         final String subCategory; // 可为 null（类别级）
@@ -416,11 +541,38 @@ public final class LedgerAnalyzer {
         long maxExpenseCents = 0;   // 最“负”的值（若无支出保持 0）
         long avgExpenseCents = 0;   // 负数（仅按支出计算）
         double expenseShare = 0d;   // 占比（类别：相对全局支出；子类：相对其类别支出）
+        long firstTs = Long.MAX_VALUE; // 最早一笔的时间戳，用于排序
 
         Stat(String category, String subCategory) {
             this.category = category;
             this.subCategory = subCategory;
         }
+
+        /**
+         * 并入一个汇总桶
+         */
+        void absorb(LedgerAggregate agg, int bucket) {
+            count += agg.count(bucket);
+            incomeCents += agg.income(bucket);
+            expenseCents += agg.expense(bucket);
+            netCents += agg.income(bucket) + agg.expense(bucket);
+            expenseCount += agg.expenseCount(bucket);
+            maxExpenseCents = Math.min(maxExpenseCents, agg.maxExpense(bucket));
+            firstTs = Math.min(firstTs, agg.firstTimestamp(bucket));
+        }
+
+        /**
+         * 并入另一个文件中同名的统计（占比与平均值由合并后重新计算）
+         */
+        void absorb(Stat o) {
+            count += o.count;
+            incomeCents += o.incomeCents;
+            expenseCents += o.expenseCents;
+            netCents += o.netCents;
+            expenseCount += o.expenseCount;
+            maxExpenseCents = Math.min(maxExpenseCents, o.maxExpenseCents);
+            firstTs = Math.min(firstTs, o.firstTs);
+        }
     }
 
     // === 表格 Row（类别） ===
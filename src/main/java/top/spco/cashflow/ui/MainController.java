@@ -15,22 +15,28 @@
  */
 package top.spco.cashflow.ui;
 
+import javafx.animation.PauseTransition;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
 import javafx.collections.transformation.FilteredList;
 import javafx.collections.transformation.SortedList;
+import javafx.concurrent.Task;
 import javafx.fxml.FXML;
 import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.input.Dragboard;
 import javafx.scene.input.TransferMode;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
-import top.spco.cashflow.importer.config.RuleConfigs;
+import javafx.util.Duration;
+import top.spco.cashflow.data.LedgerQuery;
 import top.spco.cashflow.importer.core.BillImporterService;
 import top.spco.cashflow.model.RecordRow;
 import top.spco.cashflow.service.LedgerFileService;
+import top.spco.cashflow.service.SearchIndex;
 import top.spco.cashflow.service.TaxonomyService;
 import top.spco.cashflow.ui.category.CategoryEditorController;
 import top.spco.cashflow.ui.category.CategoryEditorResult;
@@ -38,7 +44,6 @@ import top.spco.cashflow.ui.components.YuanCell;
 import top.spco.cashflow.ui.importing.ImportPreviewController;
 import top.spco.cashflow.ui.record.RecordEditorController;
 import top.spco.cashflow.ui.rules.RulesEditorController;
-import top.spco.cashflow.util.Amounts;
 import top.spco.cashflow.util.Dates;
 import top.spco.cashflow.util.StringUtil;
 import top.spco.cashflow.viewmodel.LedgerViewModel;
@@ -47,10 +52,14 @@ import java.io.File;
 import java.io.IOException;
 import java.time.LocalDate;
 import java.time.YearMonth;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.OptionalLong;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 
 import static top.spco.cashflow.util.AlertUtil.showError;
 import static top.spco.cashflow.util.AlertUtil.showInfo;
@@ -62,6 +71,19 @@ public class MainController {
     private final LedgerViewModel vm = new LedgerViewModel();
     private final TaxonomyService taxonomySvc = new TaxonomyService();
     private final LedgerFileService fileSvc = new LedgerFileService();
+    private final BillImporterService importer = new BillImporterService();
+    // 文件读写的后台线程（单线程，保证打开/保存串行）
+    private final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "cashflow-io");
+        t.setDaemon(true);
+        return t;
+    });
+    // 搜索的后台线程；与文件读写分开，搜索不必排在保存之后
+    private final ExecutorService searchExec = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "cashflow-search");
+        t.setDaemon(true);
+        return t;
+    });
 
     // MARK: FXML
     @FXML
@@ -82,6 +104,10 @@ public class MainController {
     private ComboBox<Integer> yearBox;
     @FXML
     private ComboBox<Integer> monthBox;
+    @FXML
+    private ProgressBar progressBar;
+    @FXML
+    private Button cancelTaskButton;
 
     // 记住“快速添加”里用户输入的日（不清空）
     private Integer lastQuickDay = null;
@@ -91,10 +117,19 @@ public class MainController {
 
     // ===== 状态 =====
     private final ObservableList<String> categoryChoices = taxonomySvc.categories();
+    private SearchIndex searchIndex;
     private FilteredList<RecordRow> filtered;
     private SortedList<RecordRow> sorted;
+    private Task<?> runningTask;
+    // 搜索防抖：最后一次按键 150ms 后才真正执行
+    private final PauseTransition searchDelay = new PauseTransition(Duration.millis(150));
+    private Task<SearchIndex.Hits> searchTask;
+    private String lastSearchText = "";
+    // 每次修改递增；后台保存完成时据此判断保存期间是否又有改动
+    private long editRevision = 0;
 
     private void markDirty() {
+        editRevision++;
         vm.markDirty();
         updateWindowTitle();
     }
@@ -115,12 +150,12 @@ public class MainController {
     // MARK: Initialize
     @FXML
     public void initialize() {
-        // 列绑定
-        colTimestamp.setCellValueFactory(cd -> cd.getValue().timestampMsProperty().asObject());
-        colAmount.setCellValueFactory(cd -> cd.getValue().amountCentsProperty().asObject());
-        colCategory.setCellValueFactory(cd -> cd.getValue().categoryProperty());
-        colSubCategory.setCellValueFactory(cd -> cd.getValue().subCategoryProperty());
-        colNote.setCellValueFactory(cd -> cd.getValue().noteProperty());
+        // 列绑定：按值读取，不为每行创建属性（行内容的变化由 refresh() 或整行替换反映到表格）
+        colTimestamp.setCellValueFactory(cd -> new ReadOnlyObjectWrapper<>(cd.getValue().getTimestampMs()));
+        colAmount.setCellValueFactory(cd -> new ReadOnlyObjectWrapper<>(cd.getValue().getAmountCents()));
+        colCategory.setCellValueFactory(cd -> new ReadOnlyObjectWrapper<>(cd.getValue().getCategory()));
+        colSubCategory.setCellValueFactory(cd -> new ReadOnlyObjectWrapper<>(cd.getValue().getSubCategory()));
+        colNote.setCellValueFactory(cd -> new ReadOnlyObjectWrapper<>(cd.getValue().getNote()));
 
         // 时间戳：保持 Long 排序，单元格显示为人类可读日期
         colTimestamp.setCellFactory(col -> new TableCell<>() {
@@ -139,13 +174,17 @@ public class MainController {
         colAmount.setCellFactory(col -> new YuanCell<>());
         tableView.setEditable(true);
 
-        // 过滤 + 排序
+        // 过滤 + 排序（搜索索引须先于 FilteredList 监听条目列表）
+        searchIndex = new SearchIndex(vm.getEntries());
         filtered = new FilteredList<>(vm.getEntries(), r -> true);
         sorted = new SortedList<>(filtered);
         sorted.comparatorProperty().bind(tableView.comparatorProperty());
         tableView.setItems(sorted);
+        searchDelay.setOnFinished(e -> runSearch());
 
-        vm.getEntries().addListener((ListChangeListener<RecordRow>) c -> markDirty());
+        vm.getEntries().addListener((ListChangeListener<RecordRow>) c -> {
+            if (!vm.isLoading()) markDirty();
+        });
 
         // 默认按时间戳升序
         colTimestamp.setSortType(TableColumn.SortType.ASCENDING);
@@ -177,15 +216,8 @@ public class MainController {
                 return;
             }
             if (r.get() == SAVE) {
-                try {
-                    onSave();            // 复用现有保存逻辑
-                    if (vm.isDirty()) {         // 若保存失败（仍是脏），阻止关闭
-                        evt.consume();
-                    }
-                } catch (Exception e) {
-                    evt.consume();
-                    showError("保存失败：" + e.getMessage());
-                }
+                evt.consume();           // 保存在后台进行，成功后再关闭；失败则保持窗口
+                save(stage::close);
             }
             // 选择“不保存”则直接放行
         });
@@ -205,6 +237,49 @@ public class MainController {
         }
     }
 
+    /**
+     * 合并分析多个账本（如一整年的月度文件），在后台并行加载
+     */
+    @FXML
+    private void onAnalyzeFiles() {
+        if (isBusy()) return;
+        FileChooser fc = new FileChooser();
+        fc.getExtensionFilters().setAll(new FileChooser.ExtensionFilter("Cashflow Ledger (*.cflg)", "*.cflg"), new FileChooser.ExtensionFilter("所有文件 (*.*)", "*.*"));
+        List<File> files = fc.showOpenMultipleDialog(getStage());
+        if (files == null || files.isEmpty()) return;
+        List<File> chosen = List.copyOf(files);
+        Task<LedgerAnalyzer.Analysis> task = new Task<>() {
+            @Override
+            protected LedgerAnalyzer.Analysis call() throws IOException {
+                return LedgerAnalyzer.analyzeFiles(chosen);
+            }
+        };
+        runInBackground(task, true,
+                a -> LedgerAnalyzer.show(getStage(), "分析 - " + chosen.size() + " 个文件", LedgerAnalyzer.defaultExportName(chosen), a),
+                "分析失败：");
+    }
+
+    @FXML
+    private void onAnalyzeStore() {
+        if (isBusy()) return;
+        DirectoryChooser dc = new DirectoryChooser();
+        dc.setTitle("选择存放各月账本的目录");
+        File dir = dc.showDialog(getStage());
+        if (dir == null) return;
+        Task<LedgerAnalyzer.StoreAnalysis> task = new Task<>() {
+            @Override
+            protected LedgerAnalyzer.StoreAnalysis call() throws IOException {
+                return LedgerAnalyzer.analyzeStore(dir.toPath());
+            }
+        };
+        runInBackground(task, true, r -> {
+            LedgerAnalyzer.show(getStage(), "分析 - " + dir.getName(), dir.getName() + "-分析.xlsx", r.analysis());
+            if (!r.skippedFiles().isEmpty()) {
+                showInfo("以下文件与其它文件属于同一月份，未计入分析：\n" + String.join("\n", r.skippedFiles()));
+            }
+        }, "分析失败：");
+    }
+
     // 直接分析当前已打开文件（若你维护了 currentFile）
     @FXML
     private void onAnalyze() {
@@ -220,14 +295,56 @@ public class MainController {
     }
 
     private void loadFile(File f) {
-        try {
-            fileSvc.open(f, vm, taxonomySvc);
+        if (isBusy()) return;
+        runInBackground(fileSvc.openTask(f), true, opened -> {
+            if (opened == null) return; // 已取消
+            fileSvc.apply(opened, vm, taxonomySvc);
             tableView.sort();
             if (yearBox != null && monthBox != null) syncYearMonthPickersFromState();
             clearDirty();
-        } catch (IOException ex) {
-            showError("读取失败：" + ex.getMessage());
-        }
+        }, "读取失败：");
+        tableView.setDisable(true); // 打开期间表格内容即将整体替换，禁止编辑
+    }
+
+    // ===== 后台任务 =====
+    private boolean isBusy() {
+        if (runningTask == null) return false;
+        showInfo("请等待当前的文件操作完成。");
+        return true;
+    }
+
+    /**
+     * 在 io 线程执行任务；进度显示在底部工具栏，回调都在 FX 线程上执行
+     */
+    private <T> void runInBackground(Task<T> task, boolean cancellable, Consumer<T> onSuccess, String errorPrefix) {
+        runningTask = task;
+        progressBar.progressProperty().bind(task.progressProperty());
+        progressBar.setVisible(true);
+        cancelTaskButton.setVisible(cancellable);
+        task.setOnSucceeded(e -> {
+            endBackground();
+            onSuccess.accept(task.getValue());
+        });
+        task.setOnFailed(e -> {
+            endBackground();
+            Throwable ex = task.getException();
+            showError(errorPrefix + (ex == null ? "" : ex.getMessage()));
+        });
+        task.setOnCancelled(e -> endBackground());
+        io.execute(task);
+    }
+
+    private void endBackground() {
+        runningTask = null;
+        progressBar.progressProperty().unbind();
+        progressBar.setVisible(false);
+        cancelTaskButton.setVisible(false);
+        tableView.setDisable(false);
+    }
+
+    @FXML
+    private void onCancelTask() {
+        if (runningTask != null) runningTask.cancel();
     }
 
     @FXML
@@ -240,21 +357,41 @@ public class MainController {
 
     @FXML
     private void onSave() {
+        save(null);
+    }
+
+    /**
+     * 后台保存；onSaved 在保存成功后于 FX 线程执行（可为 null）
+     */
+    private void save(Runnable onSaved) {
+        if (isBusy()) return;
+        File target = vm.getCurrentFile();
+        boolean saveAs = target == null;
+        if (saveAs) {
+            FileChooser fc = new FileChooser();
+            fc.getExtensionFilters().setAll(new FileChooser.ExtensionFilter(FILE_DESC, "*" + FILE_EXT));
+            fc.setInitialFileName(defaultFileName());
+            File chosen = fc.showSaveDialog(getStage());
+            if (chosen == null) return;
+            target = ensureExt(chosen);
+        }
+        Task<LedgerFileService.Saved> task;
         try {
-            if (vm.getCurrentFile() == null) {
-                FileChooser fc = new FileChooser();
-                fc.getExtensionFilters().setAll(new FileChooser.ExtensionFilter(FILE_DESC, "*" + FILE_EXT));
-                fc.setInitialFileName(defaultFileName());
-                File chosen = fc.showSaveDialog(getStage());
-                if (chosen == null) return;
-                fileSvc.saveAs(ensureExt(chosen), vm, taxonomySvc);
-            } else {
-                fileSvc.save(vm, taxonomySvc);
-            }
-            clearDirty();
+            task = fileSvc.saveTask(target, saveAs, vm, taxonomySvc);
         } catch (Exception ex) {
             showError("保存失败：" + ex.getMessage());
+            return;
         }
+        long revision = editRevision;
+        runInBackground(task, false, saved -> {
+            fileSvc.apply(saved, vm);
+            if (editRevision == revision) {
+                clearDirty();
+            } else {
+                updateWindowTitle();
+            }
+            if (onSaved != null) onSaved.run();
+        }, "保存失败：");
     }
 
     @FXML
@@ -281,6 +418,7 @@ public class MainController {
         var res = RecordEditorController.showEdit(getStage(), sel, categoryChoices, taxonomySvc::subsOf);
         res.ifPresent(rr -> {
             int idx = vm.getEntries().indexOf(sel);
+            rr.setRowId(sel.getRowId()); // 保留行 ID，保存时记为“修改”而非“删除+新增”
             vm.getEntries().set(idx, rr);
             taxonomySvc.ensure(rr.getCategory(), rr.getSubCategory());
             markDirty();
@@ -316,16 +454,15 @@ public class MainController {
 
 
         try {
-            var cfg = (rulesFile != null) ? RuleConfigs.load(rulesFile) : RuleConfigs.empty();
-            var importer = new BillImporterService();
-            var finals = importer.importFile(bill, cfg);     // List<UnifiedTxn>，含已按规则映射/丢弃后的结果
+            var rules = importer.loadRules(rulesFile);      // 规则文件未变化时复用已编译的规则集
+            var finals = importer.importFile(bill, rules);   // List<FinalTxn>，含已按规则映射/丢弃后的结果
 
             if (finals.isEmpty()) {
                 showInfo("没有可导入的记录。");
                 return;
             }
 
-            if (cfg.defaults.onlyAppendFromLastDate) {
+            if (rules.defaults().onlyAppendFromLastDate) {
                 OptionalLong maxTsOpt = vm.getEntries().stream().mapToLong(RecordRow::getTimestampMs).max();
                 if (maxTsOpt.isPresent()) {
                     long maxTs = maxTsOpt.getAsLong();
@@ -349,10 +486,8 @@ public class MainController {
                 }
             }
 
-            for (var r : rows) {
-                taxonomySvc.ensure(r.getCategory(), r.getSubCategory());
-                vm.getEntries().add(r);
-            }
+            taxonomySvc.ensureAll(rows);
+            vm.appendEntries(rows);
 
             tableView.sort();
             markDirty();
@@ -570,7 +705,8 @@ public class MainController {
         if (o.equals(n)) return;
         for (RecordRow r : vm.getEntries()) {
             if (o.equals(r.getCategory())) {
-                r.categoryProperty().set(n);
+                r.setCategory(n);
+                searchIndex.update(r);
             }
         }
     }
@@ -583,7 +719,8 @@ public class MainController {
         if (o.equals(n)) return;
         for (RecordRow r : vm.getEntries()) {
             if (c.equals(r.getCategory()) && o.equals(r.getSubCategory())) {
-                r.subCategoryProperty().set(n);
+                r.setSubCategory(n);
+                searchIndex.update(r);
             }
         }
     }
@@ -591,11 +728,51 @@ public class MainController {
     // ===== 搜索 =====
     @FXML
     private void onSearch() {
-        String q = Optional.ofNullable(searchField.getText()).orElse("").trim().toLowerCase();
-        filtered.setPredicate(r -> {
-            if (q.isEmpty()) return true;
-            return Dates.formatDateTime(r.getTimestampMs()).toLowerCase().contains(q) || Amounts.formatYuan(r.getAmountCents()).toLowerCase().contains(q) || r.getCategory().toLowerCase().contains(q) || r.getSubCategory().toLowerCase().contains(q) || r.getNote().toLowerCase().contains(q);
+        String text = Optional.ofNullable(searchField.getText()).orElse("");
+        if (text.equals(lastSearchText)) return; // 方向键等不改变内容的按键
+        lastSearchText = text;
+        if (searchTask != null) searchTask.cancel(); // 新的输入让进行中的搜索过时
+        searchDelay.playFromStart();
+    }
+
+    /**
+     * 在索引快照上后台执行搜索，只把最终结果交给 FilteredList；快照之后新增或改动的行由判定当场校验
+     */
+    private void runSearch() {
+        if (searchTask != null) searchTask.cancel();
+        searchTask = null;
+        String text = lastSearchText;
+        LedgerQuery parsed;
+        try {
+            parsed = LedgerQuery.parse(text);
+        } catch (IllegalArgumentException ex) {
+            // 条件还没输完整（如 “amount:<”）时按普通文本搜索，不打断输入
+            parsed = LedgerQuery.text(text);
+        }
+        LedgerQuery query = parsed;
+        if (query.isEmpty()) {
+            filtered.setPredicate(r -> true);
+            return;
+        }
+        SearchIndex.Snapshot snapshot = searchIndex.snapshot();
+        Task<SearchIndex.Hits> task = new Task<>() {
+            @Override
+            protected SearchIndex.Hits call() {
+                return snapshot.search(query, this::isCancelled);
+            }
+        };
+        task.setOnSucceeded(e -> {
+            if (searchTask != task || task.getValue() == null) return;
+            searchTask = null;
+            filtered.setPredicate(searchIndex.predicate(task.getValue(), query));
+        });
+        task.setOnFailed(e -> {
+            if (searchTask == task) searchTask = null;
+            Throwable ex = task.getException();
+            showError("搜索失败：" + (ex == null ? "" : ex.getMessage()));
         });
+        searchTask = task;
+        searchExec.execute(task);
     }
 
     // ===== 小工具 =====
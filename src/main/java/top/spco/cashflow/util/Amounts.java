@@ -17,15 +17,21 @@ package top.spco.cashflow.util;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.text.DecimalFormat;
 import java.util.Objects;
 
 public final class Amounts {
-    private static final DecimalFormat YUAN_FMT = new DecimalFormat("0.00");
-
+    /**
+     * 两位小数的元，如 -12.05；纯 long 运算，不经共享的 DecimalFormat，可在任意线程上调用（搜索在后台线程格式化）
+     */
     public static String formatYuan(long cents) {
-        BigDecimal yuan = BigDecimal.valueOf(cents).movePointLeft(2);
-        return YUAN_FMT.format(yuan);
+        if (cents == Long.MIN_VALUE) return formatYuanPlain(cents); // 取绝对值会溢出
+        long abs = Math.abs(cents);
+        long frac = abs % 100;
+        StringBuilder sb = new StringBuilder(24);
+        if (cents < 0) sb.append('-');
+        sb.append(abs / 100).append('.');
+        if (frac < 10) sb.append('0');
+        return sb.append(frac).toString();
     }
 
     public static String formatYuanPlain(long cents) {
@@ -21,6 +21,7 @@ import javafx.collections.ObservableList;
 import top.spco.cashflow.model.RecordRow;
 
 import java.io.File;
+import java.util.Collection;
 import java.time.YearMonth;
 
 public final class LedgerViewModel {
@@ -29,7 +30,32 @@ public final class LedgerViewModel {
     private final ObjectProperty<File> currentFile = new SimpleObjectProperty<>();
     private final BooleanProperty dirty = new SimpleBooleanProperty(false);
 
+    // 批量灌入期间为 true，监听器据此跳过脏标记
+    private boolean loading = false;
+
     public ObservableList<RecordRow> getEntries() { return entries; }
+
+    /**
+     * 整体替换（打开文件用）：在列表外建好后一次 setAll，只产生一次变更事件；期间不计脏，结束后视为干净
+     */
+    public void loadEntries(Collection<? extends RecordRow> rows) {
+        loading = true;
+        try {
+            entries.setAll(rows);
+        } finally {
+            loading = false;
+        }
+        clearDirty();
+    }
+
+    /**
+     * 批量追加（导入用）：一次 addAll，只产生一次变更事件
+     */
+    public void appendEntries(Collection<? extends RecordRow> rows) {
+        entries.addAll(rows);
+    }
+
+    public boolean isLoading() { return loading; }
     public ObjectProperty<YearMonth> yearMonthProperty() { return yearMonth; }
     public ObjectProperty<File> currentFileProperty() { return currentFile; }
     public BooleanProperty dirtyProperty() { return dirty; }
@@ -15,21 +15,45 @@
  */
 package top.spco;
 
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import org.junit.jupiter.api.Test;
 import top.spco.cashflow.data.LedgerIO;
 import top.spco.cashflow.data.CategoryTaxonomy;
+import top.spco.cashflow.data.LedgerAggregate;
+import top.spco.cashflow.data.LedgerJournal;
+import top.spco.cashflow.data.LedgerQuery;
+import top.spco.cashflow.data.LedgerStore;
 import top.spco.cashflow.data.MonthlyLedger;
+import top.spco.cashflow.model.RecordRow;
+import top.spco.cashflow.service.SearchIndex;
+import top.spco.cashflow.util.Amounts;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.math.BigDecimal;
 import java.text.DecimalFormat;
 import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.YearMonth;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class LedgerTest {
 
@@ -111,4 +135,533 @@ public class LedgerTest {
             System.out.println();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void roundTripKeepsColumns() throws IOException {
+        CategoryTaxonomy taxonomy = new CategoryTaxonomy(
+                List.of("餐饮", "工资"),
+                List.of(List.of("正餐", "小吃"), List.of("固定收入"))
+        );
+        MonthlyLedger ledger = MonthlyLedger.of(YearMonth.of(2025, 9), 8, 128);
+        for (int i = 0; i < 1000; i++) {
+            int cat = i % 2;
+            ledger.add(1_756_000_000_000L + i * 60_000L, (cat == 0) ? -(i + 1) : (i + 1) * 100L, cat, (cat == 0) ? i % 3 % 2 : 0, (i % 7 == 0) ? "" : "备注" + i);
+        }
+        File file = File.createTempFile("ledger", ".cflg");
+        file.deleteOnExit();
+        LedgerIO.save(ledger, taxonomy, file);
+
+        LedgerIO.Bundle loaded = LedgerIO.load(file);
+        assertEquals(2025, loaded.ledger.year());
+        assertEquals(9, loaded.ledger.month());
+        assertEquals(ledger.size(), loaded.ledger.size());
+        for (int i = 0; i < ledger.size(); i++) {
+            MonthlyLedger.EntryView a = ledger.get(i), b = loaded.ledger.get(i);
+            assertEquals(a.timestamp(), b.timestamp());
+            assertEquals(a.amountInCents(), b.amountInCents());
+            assertEquals(a.categoryId(), b.categoryId());
+            assertEquals(a.subCategoryId(), b.subCategoryId());
+            assertEquals(a.noteUtf8(), b.noteUtf8());
+        }
+        assertEquals("小吃", loaded.taxonomy.subName(0, 1));
+        assertEquals("固定收入", loaded.taxonomy.subName(1, 0));
+    }
+
+    @Test
+    public void journalReplaysOnTopOfSnapshot() throws IOException {
+        CategoryTaxonomy taxonomy = new CategoryTaxonomy(List.of("餐饮"), List.of(List.of("正餐")));
+        MonthlyLedger ledger = MonthlyLedger.of(YearMonth.of(2025, 9), 8, 128);
+        for (int i = 0; i < 3; i++) ledger.add(1000L * i, -100L * (i + 1), 0, 0, "行" + i);
+        File file = File.createTempFile("ledger", ".cflg");
+        file.deleteOnExit();
+        LedgerJournal.fileFor(file).deleteOnExit();
+        LedgerIO.Snapshot snapshot = LedgerIO.save(ledger, taxonomy, file);
+
+        long len = LedgerJournal.append(file, snapshot, 0, List.of(
+                new LedgerJournal.Update(1, 1500L, -999, "饮料", "咖啡", "改过"),
+                new LedgerJournal.Add(3, 5000L, 100, "餐饮", "正餐", "")));
+        len = LedgerJournal.append(file, snapshot, len, List.of(new LedgerJournal.Delete(0)));
+        // 模拟写到一半崩溃：残缺的尾记录应被忽略
+        try (RandomAccessFile raf = new RandomAccessFile(LedgerJournal.fileFor(file), "rw")) {
+            raf.seek(len);
+            raf.writeInt(100);
+            raf.write(new byte[]{2, 0, 0});
+        }
+
+        LedgerIO.Bundle loaded = LedgerIO.load(file);
+        assertEquals(len, loaded.journalLength);
+        assertEquals(3, loaded.ledger.size());
+        assertEquals(List.of(1L, 2L, 3L), List.of(loaded.rowIds[0], loaded.rowIds[1], loaded.rowIds[2]));
+        MonthlyLedger.EntryView e = loaded.ledger.get(0);
+        assertEquals(-999, e.amountInCents());
+        assertEquals("饮料", loaded.taxonomy.categoryName(e.categoryId()));
+        assertEquals("咖啡", loaded.taxonomy.subName(e.categoryId(), e.subCategoryId()));
+        assertEquals("改过", e.noteUtf8());
+        assertEquals("行2", loaded.ledger.get(1).noteUtf8());
+        assertEquals(100, loaded.ledger.get(2).amountInCents());
+        assertEquals(4, loaded.nextRowId);
+
+        // 整体重写快照后旧日志被删除
+        LedgerIO.save(loaded.ledger, loaded.taxonomy, file);
+        assertFalse(LedgerJournal.fileFor(file).exists());
+        assertEquals(3, LedgerIO.load(file).ledger.size());
+    }
+
+    @Test
+    public void storeSharesTaxonomyAcrossMonths() throws IOException {
+        Path dir = Files.createTempDirectory("store");
+        LedgerStore store = LedgerStore.open(dir);
+        CategoryTaxonomy sep = new CategoryTaxonomy(List.of("餐饮", "工资"), List.of(List.of("正餐"), List.of("固定收入")));
+        MonthlyLedger m9 = MonthlyLedger.of(YearMonth.of(2025, 9), 8, 128);
+        m9.add(1000L, -100, 0, 0, "九月");
+        m9.add(2000L, 500, 1, 0, "");
+        m9.add(2500L, -10, 0, -1, "有类别无子类");
+        m9.add(3000L, -50, -1, -1, "未分类");
+        store.put(m9, sep);
+        // 十月的分类树顺序不同，并多了一个类别
+        CategoryTaxonomy oct = new CategoryTaxonomy(List.of("交通", "餐饮"), List.of(List.of("地铁"), List.of("小吃", "正餐")));
+        MonthlyLedger m10 = MonthlyLedger.of(YearMonth.of(2025, 10), 8, 128);
+        m10.add(5000L, -300, 1, 1, "十月正餐");
+        m10.add(6000L, -200, 0, 0, "");
+        store.put(m10, oct);
+
+        LedgerStore reopened = LedgerStore.open(dir);
+        assertEquals(2, reopened.segments().size());
+        assertEquals(2, reopened.segments().get(1).rows());
+        assertEquals(6000L, reopened.segments().get(1).maxTs());
+        CategoryTaxonomy shared = reopened.taxonomy();
+        MonthlyLedger.EntryView e = reopened.month(YearMonth.of(2025, 10)).get(0);
+        assertEquals("餐饮", shared.categoryName(e.categoryId()));
+        assertEquals("正餐", shared.subName(e.categoryId(), e.subCategoryId()));
+        assertEquals(1, reopened.overlapping(0, 3000).size());
+        assertEquals(2, reopened.range(YearMonth.of(2025, 1), YearMonth.of(2025, 12)).size());
+        assertEquals(null, reopened.month(YearMonth.of(2025, 11)));
+        // 未分类的负 ID 原样保留
+        MonthlyLedger sepLoaded = reopened.month(YearMonth.of(2025, 9));
+        assertEquals("餐饮", shared.categoryName(sepLoaded.get(2).categoryId()));
+        assertEquals(-1, sepLoaded.get(2).subCategoryId());
+        assertEquals(-1, sepLoaded.get(3).categoryId());
+        assertEquals(-1, sepLoaded.get(3).subCategoryId());
+        // 段统计与各月汇总来自尾部汇总段，ID 按段自带的分类树解释
+        LedgerIO.Summary octSummary = reopened.summary(YearMonth.of(2025, 10));
+        assertEquals(2, octSummary.aggregate().rows());
+        assertEquals(5000L, octSummary.aggregate().minTimestamp());
+        assertEquals(1, octSummary.aggregate().count(octSummary.aggregate().subBucket(1, 1)));
+        assertEquals("正餐", octSummary.taxonomy().subName(1, 1));
+    }
+
+    @Test
+    public void storeDescribesSegmentsWithoutSummary() throws IOException {
+        Path dir = Files.createTempDirectory("store");
+        CategoryTaxonomy tax = new CategoryTaxonomy(List.of("餐饮"), List.of(List.of("正餐")));
+        MonthlyLedger m9 = MonthlyLedger.of(YearMonth.of(2025, 9), 8, 128);
+        m9.add(3000L, -100, 0, 0, "");
+        m9.add(1000L, -50, -1, -1, "未分类");
+        LedgerIO.save(m9, tax, dir.resolve("九月.cflg").toFile(), false);
+
+        LedgerStore store = LedgerStore.openReadOnly(dir);
+        LedgerStore.Segment s = store.segments().get(0);
+        assertEquals(2, s.rows());
+        assertEquals(1000L, s.minTs());
+        assertEquals(3000L, s.maxTs());
+        LedgerAggregate a = store.summary(YearMonth.of(2025, 9)).aggregate();
+        assertEquals(150, a.totalExpenseAbs());
+        assertEquals(1, a.count(a.categoryBucket(0)));
+    }
+
+    @Test
+    public void readOnlyStoreSkipsDuplicateMonths() throws IOException {
+        Path dir = Files.createTempDirectory("store");
+        CategoryTaxonomy tax = new CategoryTaxonomy(List.of("餐饮"), List.of(List.of("正餐")));
+        MonthlyLedger m9 = MonthlyLedger.of(YearMonth.of(2025, 9), 8, 128);
+        m9.add(1000L, -100, 0, 0, "九月");
+        LedgerIO.save(m9, tax, dir.resolve("九月.cflg").toFile());
+        LedgerIO.save(m9, tax, dir.resolve("九月 - 副本.cflg").toFile());
+
+        LedgerStore store = LedgerStore.openReadOnly(dir);
+        assertEquals(1, store.segments().size());
+        assertEquals("九月 - 副本.cflg", store.segments().get(0).fileName());
+        assertEquals(List.of("九月.cflg"), store.skippedFiles());
+        assertFalse(Files.exists(dir.resolve(LedgerStore.INDEX_NAME)));
+        assertThrows(IllegalStateException.class, () -> store.put(m9, tax));
+        assertThrows(IOException.class, () -> LedgerStore.openReadOnly(dir.resolve("不存在")));
+
+        // 可写打开同样跳过重复文件，并写入索引
+        LedgerStore writable = LedgerStore.open(dir);
+        assertEquals(List.of("九月.cflg"), writable.skippedFiles());
+        assertTrue(Files.exists(dir.resolve(LedgerStore.INDEX_NAME)));
+    }
+
+    @Test
+    public void taxonomyIndexFollowsRenameAndRemove() {
+        CategoryTaxonomy t = new CategoryTaxonomy(List.of("餐饮", "饮料", "工资"), List.of(List.of("正餐", "小吃"), List.of("咖啡"), List.of("固定收入")));
+        assertEquals(1, t.categoryIdOf("饮料"));
+        assertEquals(-1, t.indexOfCategory("交通"));
+        assertEquals(3, t.categoryCount());
+
+        t.renameCategory(1, "饮品");
+        assertEquals(-1, t.indexOfCategory("饮料"));
+        assertEquals(1, t.indexOfCategory("饮品"));
+        t.removeCategory(0);
+        assertEquals(0, t.indexOfCategory("饮品"));
+        assertEquals(1, t.indexOfCategory("工资"));
+        assertEquals(List.of(), t.subsOf("餐饮"));
+
+        long key = t.pairKeyOf("工资", "奖金");
+        assertEquals(1, CategoryTaxonomy.catOf(key));
+        assertEquals(1, CategoryTaxonomy.subOf(key));
+        t.removeSub(1, 0);
+        assertEquals(0, t.indexOfSub(1, "奖金"));
+        assertEquals(CategoryTaxonomy.pairKey(1, 0), t.pairKeyOf("工资", "奖金"));
+    }
+
+    @Test
+    public void queryParsesConditions() {
+        LedgerQuery q = LedgerQuery.parse("cat:餐饮 amount:<-100");
+        assertTrue(q.matchesColumns(ms(2025, 9, 1), -15000, "餐饮", "正餐"));
+        assertFalse(q.matchesColumns(ms(2025, 9, 3), -3000, "餐饮", "咖啡"));
+        assertFalse(q.matchesColumns(ms(2025, 9, 1), -15000, "交通", "地铁"));
+
+        q = LedgerQuery.parse("date:2025-09-01..2025-09-15");
+        assertTrue(q.matchesPrimitives(ms(2025, 9, 15) + 11 * 3_600_000L, 0));
+        assertFalse(q.matchesPrimitives(ms(2025, 9, 20), 0));
+        assertFalse(q.matchesPrimitives(ms(2025, 8, 31), 0));
+        q = LedgerQuery.parse("amount:-100..0");
+        assertTrue(q.matchesPrimitives(0, -10000));
+        assertTrue(q.matchesPrimitives(0, 0));
+        assertFalse(q.matchesPrimitives(0, -10001));
+        q = LedgerQuery.parse("cat:交通,餐饮 sub:咖啡 date:2025-09-05..");
+        assertTrue(q.matchesColumns(ms(2025, 9, 10), -400, "餐饮", "咖啡"));
+        assertFalse(q.matchesColumns(ms(2025, 9, 10), -400, "交通", "地铁"));
+        assertFalse(q.matchesColumns(ms(2025, 9, 3), -400, "餐饮", "咖啡"));
+
+        assertEquals(List.of("咖啡"), LedgerQuery.parse("note:咖啡").noteTerms());
+        // 没有条件键时整段文本是一个子串（旧搜索语义）；带条件键时各个词分别匹配
+        assertEquals(List.of("party -200"), LedgerQuery.parse("Party -200").textTerms());
+        assertEquals(List.of("party", "-200"), LedgerQuery.parse("date:2025-09 Party -200").textTerms());
+        assertTrue(LedgerQuery.parse("  ").isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> LedgerQuery.parse("amount:<"));
+        assertThrows(IllegalArgumentException.class, () -> LedgerQuery.parse("date:九月"));
+    }
+
+    @Test
+    public void aggregateSumsByCategoryAndSub() {
+        CategoryTaxonomy tax = new CategoryTaxonomy(List.of("餐饮", "工资"), List.of(List.of("正餐", "咖啡"), List.of("固定收入")));
+        MonthlyLedger m = MonthlyLedger.of(YearMonth.of(2025, 9), 8, 64);
+        m.add(3000L, -2500, 0, 0, "");
+        m.add(1000L, -1200, 0, 1, "");
+        m.add(2000L, -800, 0, 1, "");
+        m.add(4000L, 1500000, 1, 0, "");
+
+        LedgerAggregate a = LedgerAggregate.of(m, tax);
+        int food = a.categoryBucket(0), coffee = a.subBucket(0, 1), salary = a.subBucket(1, 0);
+        assertEquals(3, a.count(food));
+        assertEquals(-4500, a.expense(food));
+        assertEquals(-2500, a.maxExpense(food));
+        assertEquals(1000L, a.firstTimestamp(food));
+        assertEquals(2, a.expenseCount(coffee));
+        assertEquals(-2000, a.expense(coffee));
+        assertEquals(1500000, a.income(salary));
+        assertEquals(0, a.expenseCount(salary));
+        assertEquals(1500000, a.totalIncome());
+        assertEquals(4500, a.totalExpenseAbs());
+        assertEquals(1495500, a.net());
+        assertEquals(4, a.rows());
+    }
+
+    @Test
+    public void summaryBlockServesAnalysisUntilStale() throws IOException {
+        CategoryTaxonomy tax = new CategoryTaxonomy(List.of("餐饮", "工资"), List.of(List.of("正餐", "咖啡"), List.of("固定收入")));
+        MonthlyLedger m = MonthlyLedger.of(YearMonth.of(2025, 9), 8, 128);
+        m.add(ms(2025, 9, 2), -2500, 0, 0, "午饭");
+        m.add(ms(2025, 9, 2), -1200, 0, 1, "");
+        m.add(ms(2025, 9, 30), 1500000, 1, 0, "九月工资");
+        File file = File.createTempFile("ledger", ".cflg");
+        file.deleteOnExit();
+        LedgerJournal.fileFor(file).deleteOnExit();
+        LedgerIO.Snapshot snapshot = LedgerIO.save(m, tax, file);
+
+        LedgerIO.Summary s = LedgerIO.loadSummary(file);
+        LedgerAggregate a = s.aggregate();
+        assertEquals(YearMonth.of(2025, 9), s.yearMonth());
+        assertEquals("固定收入", s.taxonomy().subName(1, 0));
+        assertEquals(3, a.rows());
+        assertEquals(-3700, a.expense(a.categoryBucket(0)));
+        assertEquals(-1200, a.maxExpense(a.subBucket(0, 1)));
+        assertEquals(2, a.dayCount(2));
+        assertEquals(1500000, a.dayIncome(30));
+        assertEquals(30, a.days());
+        // 带汇总段的文件照常整体加载
+        assertEquals(3, LedgerIO.load(file).ledger.size());
+
+        // 快照之后有编辑日志：汇总段视为过期
+        LedgerJournal.append(file, snapshot, 0, List.of(new LedgerJournal.Delete(0)));
+        assertEquals(null, LedgerIO.loadSummary(file));
+
+        LedgerIO.save(m, tax, file, false);
+        assertEquals(null, LedgerIO.loadSummary(file));
+        assertEquals(3, LedgerIO.load(file).ledger.size());
+    }
+
+    @Test
+    public void sortedLedgerUsesBinarySearch() throws IOException {
+        CategoryTaxonomy tax = new CategoryTaxonomy(List.of("餐饮"), List.of(List.of("正餐")));
+        MonthlyLedger m = MonthlyLedger.of(YearMonth.of(2025, 9), 4, 64);
+        m.add(ms(2025, 9, 1), -100, 0, 0, "a");
+        m.add(ms(2025, 9, 3), -300, 0, 0, "c");
+        m.add(ms(2025, 9, 2), -200, 0, 0, "b");
+        assertFalse(m.isSortedByTime());
+        assertEquals(-500, m.sumAmountByTimeRange(ms(2025, 9, 2), ms(2025, 9, 3)));
+
+        // 开启保持排序：先整体排好，之后乱序的 add 插入到对应位置
+        m.setKeepSortedByTime(true);
+        assertTrue(m.isSortedByTime());
+        assertEquals("b", m.get(1).noteUtf8());
+        assertEquals(1, m.add(ms(2025, 9, 1), -50, 0, 0, "a2"));
+        assertEquals("a2", m.get(1).noteUtf8());
+        assertEquals("c", m.get(3).noteUtf8());
+        assertEquals(-500, m.sumAmountByTimeRange(ms(2025, 9, 2), ms(2025, 9, 3)));
+        assertEquals(2, m.countSince(ms(2025, 9, 2)));
+        assertEquals(2, m.firstRowAtOrAfter(ms(2025, 9, 2)));
+        assertEquals(-150, LedgerAggregate.of(m, tax).dayExpense(1));
+
+        // 排序标志写在尾部的行序段里，文件头仍是版本 2；去掉该段（即旧版写出的文件）时读取端扫描确认
+        File file = File.createTempFile("sorted", ".cflg");
+        file.deleteOnExit();
+        LedgerIO.save(m, tax, file);
+        assertTrue(LedgerIO.load(file).ledger.isSortedByTime());
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        assertEquals(2, bytes[7]);
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - Integer.BYTES * 5));
+        MonthlyLedger old = LedgerIO.load(file).ledger;
+        assertTrue(old.isSortedByTime());
+        assertEquals(4, old.size());
+        assertEquals(-650, old.sumAmountByTimeRange(ms(2025, 9, 1), ms(2025, 9, 3)));
+        assertEquals(4, LedgerIO.loadSummary(file).aggregate().rows());
+    }
+
+    @Test
+    public void amountIndexMatchesScan() {
+        MonthlyLedger m = MonthlyLedger.of(YearMonth.of(2025, 9), 8, 128);
+        m.setKeepSortedByTime(true);
+        m.enableAmountIndex();
+        Random rnd = new Random(42);
+        long t0 = ms(2025, 9, 1);
+        for (int i = 0; i < 500; i++) {
+            // 大多按时间追加（增量维护），偶尔插入到中间（索引回建）
+            long t = (i % 50 == 49) ? t0 + rnd.nextInt(i * 1000 + 1) : t0 + i * 1000L;
+            m.add(t, rnd.nextInt(20000) - 15000, rnd.nextInt(4), 0, null);
+            if (i % 37 == 0) {
+                long from = t0 + rnd.nextInt(500_000), to = from + rnd.nextInt(200_000);
+                int c = rnd.nextInt(5);
+                long expected = 0;
+                for (int r = 0; r < m.size(); r++) {
+                    MonthlyLedger.EntryView e = m.get(r);
+                    if (e.categoryId() == c && e.timestamp() >= from && e.timestamp() <= to) expected += e.amountInCents();
+                }
+                assertEquals(expected, m.sumAmount(c, from, to));
+                assertEquals(m.sumAmountByTimeRange(from, to), m.sumAmount(from, to));
+            }
+        }
+        assertEquals(m.sumAmountByTimeRange(Long.MIN_VALUE, Long.MAX_VALUE), m.sumAmount(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(0, m.sumAmount(9, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void categoryIndexGrowsWithNewCategories() {
+        MonthlyLedger m = MonthlyLedger.of(YearMonth.of(2025, 9), 8, 128);
+        m.enableCategoryIndex();
+        for (int i = 0; i < 300; i++) m.add(ms(2025, 9, 1) + i, -i, i % 3, i % 2, null);
+        List<Integer> rows = new ArrayList<>();
+        m.forEachByCategory(0, r -> rows.add(r) || true);
+        assertEquals(100, rows.size());
+        // 索引建立之后才出现的类别 7 不得混入类别 0
+        m.add(ms(2025, 9, 2), -1, 7, 0, null);
+        rows.clear();
+        m.forEachByCategory(0, r -> rows.add(r) || true);
+        assertEquals(100, rows.size());
+        assertEquals(0, (int) rows.get(0));
+        assertEquals(297, (int) rows.get(99));
+        rows.clear();
+        m.forEachByCategory(7, r -> rows.add(r) || true);
+        assertEquals(List.of(300), rows);
+        // 大量追加后回建，行号仍升序；(类别, 子类) 倒排
+        for (int i = 0; i < 200; i++) m.add(ms(2025, 9, 3) + i, -1, 7, 1, null);
+        rows.clear();
+        m.forEachBySubCategory(7, 1, r -> rows.add(r) || true);
+        assertEquals(200, rows.size());
+        assertEquals(301, (int) rows.get(0));
+        rows.clear();
+        m.forEachBySubCategory(1, 1, r -> rows.add(r) || true);
+        assertEquals(List.of(1, 7), rows.subList(0, 2));
+        assertEquals(50, rows.size());
+        // 提前停止
+        rows.clear();
+        m.forEachByCategory(2, r -> rows.add(r) && rows.size() < 3);
+        assertEquals(List.of(2, 5, 8), rows);
+    }
+
+    @Test
+    public void deleteAndCompactReclaimRowsAndNotes() throws IOException {
+        CategoryTaxonomy tax = new CategoryTaxonomy(List.of("餐饮", "交通"), List.of(List.of("正餐"), List.of("地铁")));
+        MonthlyLedger m = MonthlyLedger.of(YearMonth.of(2025, 9), 8, 128);
+        m.enableCategoryIndex();
+        m.enableAmountIndex();
+        m.add(ms(2025, 9, 1), -100, 0, 0, "早饭");
+        m.add(ms(2025, 9, 2), -200, 1, 0, "地铁");
+        m.add(ms(2025, 9, 3), -300, 0, 0, "晚饭");
+        assertEquals(-600, m.sumAmount(Long.MIN_VALUE, Long.MAX_VALUE));
+
+        m.set(0, ms(2025, 9, 1), -150, 0, 0, "早饭和咖啡");
+        m.delete(1);
+        assertFalse(m.isLive(1));
+        assertThrows(NoSuchElementException.class, () -> m.get(1));
+        assertEquals(2, m.liveCount());
+        assertEquals(-450, m.sumAmount(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(0, m.sumAmount(1, Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(2, m.countSince(ms(2025, 9, 1)));
+        assertEquals(2, LedgerAggregate.of(m, tax).rows());
+        assertArrayEquals(new int[]{0, 2}, m.sortedIndicesByTimestampAsc());
+        assertEquals("早饭".getBytes(StandardCharsets.UTF_8).length + "地铁".getBytes(StandardCharsets.UTF_8).length,
+                m.garbageNoteBytes());
+
+        // 保存时墓碑与空洞不落盘
+        File file = File.createTempFile("compact", ".cflg");
+        file.deleteOnExit();
+        LedgerIO.save(m, tax, file);
+        MonthlyLedger loaded = LedgerIO.load(file).ledger;
+        assertEquals(2, loaded.size());
+        assertEquals("晚饭", loaded.get(1).noteUtf8());
+
+        assertArrayEquals(new int[]{0, 2}, m.compact());
+        assertEquals(2, m.size());
+        assertEquals(0, m.garbageNoteBytes());
+        assertEquals("早饭和咖啡", m.get(0).noteUtf8());
+        assertEquals("晚饭", m.get(1).noteUtf8());
+        assertEquals(-450, m.sumAmount(0, Long.MIN_VALUE, Long.MAX_VALUE));
+        List<Integer> rows = new ArrayList<>();
+        m.forEachByCategory(0, r -> rows.add(r) || true);
+        assertEquals(List.of(0, 1), rows);
+    }
+
+    @Test
+    public void keepSortedSurvivesTimestampEdits() {
+        MonthlyLedger m = MonthlyLedger.of(YearMonth.of(2025, 9), 8, 128);
+        m.setKeepSortedByTime(true);
+        m.add(ms(2025, 9, 1), -100, 0, 0, "a");
+        m.add(ms(2025, 9, 2), -200, 0, 0, "b");
+        m.add(ms(2025, 9, 3), -300, 0, 0, "c");
+        m.add(ms(2025, 9, 4), -400, 0, 0, "d");
+        // 把首行改到 9 月 5 日：该行移到末尾，账本保持有序
+        assertEquals(3, m.set(0, ms(2025, 9, 5), -100, 0, 0, "a"));
+        assertTrue(m.isSortedByTime());
+        assertEquals("b", m.get(0).noteUtf8());
+        assertEquals("a", m.get(3).noteUtf8());
+        // 随后的乱序 add 仍插入到正确位置
+        assertEquals(2, m.add(ms(2025, 9, 3) + 1, -50, 0, 0, "c2"));
+        String notes = "";
+        for (int r = 0; r < m.size(); r++) notes += m.get(r).noteUtf8();
+        assertEquals("bcc2da", notes);
+        assertEquals(-350, m.sumAmountByTimeRange(ms(2025, 9, 3), ms(2025, 9, 3) + 1));
+        // 不改变次序的编辑行号不变
+        assertEquals(1, m.set(1, ms(2025, 9, 3), -30, 0, 0, "c"));
+    }
+
+    @Test
+    public void amountIndexSkipsUncategorisedRows() {
+        MonthlyLedger m = MonthlyLedger.of(YearMonth.of(2025, 9), 8, 128);
+        m.enableAmountIndex();
+        m.add(ms(2025, 9, 1), -100, 0, 0, null);
+        m.add(ms(2025, 9, 2), -200, -1, -1, "未分类");
+        assertEquals(-300, m.sumAmount(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(-100, m.sumAmount(0, Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(0, m.sumAmount(-1, Long.MIN_VALUE, Long.MAX_VALUE));
+        // 索引建立之后追加与改写未分类的行
+        m.add(ms(2025, 9, 3), -400, -1, -1, null);
+        m.set(1, ms(2025, 9, 2), -250, -1, -1, "未分类");
+        assertEquals(-750, m.sumAmount(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(-100, m.sumAmount(0, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void summarySkipsUncategorisedRows() throws IOException {
+        CategoryTaxonomy tax = new CategoryTaxonomy(List.of("餐饮"), List.of(List.of("正餐")));
+        MonthlyLedger m = MonthlyLedger.of(YearMonth.of(2025, 9), 8, 128);
+        m.add(ms(2025, 9, 1), -100, 0, 0, null);
+        m.add(ms(2025, 9, 2), -200, -1, -1, "未分类");
+        m.add(ms(2025, 9, 3), 500, 0, -1, "有类别无子类");
+        File file = File.createTempFile("ledger", ".cflg");
+        file.deleteOnExit();
+        LedgerIO.save(m, tax, file);
+
+        LedgerAggregate a = LedgerIO.loadSummary(file).aggregate();
+        assertEquals(3, a.rows());
+        assertEquals(500, a.totalIncome());
+        assertEquals(300, a.totalExpenseAbs());
+        assertEquals(2, a.count(a.categoryBucket(0)));
+        assertEquals(1, a.count(a.subBucket(0, 0)));
+        assertEquals(1, a.dayCount(2));
+        assertEquals(-1, LedgerIO.load(file).ledger.get(1).categoryId());
+    }
+
+    @Test
+    public void formatYuanMatchesPlainFormatting() {
+        for (long cents : new long[]{0, 5, -5, 100, -1205, 123456789, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            assertEquals(Amounts.formatYuanPlain(cents), Amounts.formatYuan(cents));
+        }
+        assertEquals("-0.05", Amounts.formatYuan(-5));
+    }
+
+    @Test
+    public void searchIndexFiltersStalePostingsOfReusedSlots() {
+        RecordRow lunch = new RecordRow(ms(2025, 9, 1), -3500, "餐饮", "正餐", "午饭 KFC");
+        RecordRow metro = new RecordRow(ms(2025, 9, 2), -400, "交通", "地铁", "");
+        ObservableList<RecordRow> rows = FXCollections.observableArrayList(lunch, metro);
+        SearchIndex index = new SearchIndex(rows);
+
+        // 删除后再加入：新行复用空出的槽位，旧行的倒排条目仍指向该槽位，必须在校验时被过滤
+        for (int i = 0; i < 100; i++) {
+            RecordRow old = rows.get(0);
+            rows.remove(old);
+            rows.add(0, new RecordRow(ms(2025, 9, 3), -1000 - i, "饮料", "咖啡", "咖啡" + i));
+        }
+        assertEquals(0, hits(index, "kfc"));
+        assertEquals(0, hits(index, "咖啡0"));
+        assertEquals(1, hits(index, "咖啡99"));
+        assertEquals(1, hits(index, "地铁"));
+        assertEquals(1, hits(index, "饮料"));
+    }
+
+    @Test
+    public void searchIndexPredicateRechecksRowsWrittenAfterSnapshot() {
+        RecordRow lunch = new RecordRow(ms(2025, 9, 1), -3500, "餐饮", "正餐", "午饭 KFC");
+        RecordRow metro = new RecordRow(ms(2025, 9, 2), -400, "交通", "地铁", "");
+        ObservableList<RecordRow> rows = FXCollections.observableArrayList(lunch, metro);
+        SearchIndex index = new SearchIndex(rows);
+
+        LedgerQuery q = LedgerQuery.text("kfc");
+        SearchIndex.Hits hits = index.snapshot().search(q, () -> false);
+        assertEquals(1, hits.count());
+
+        // 快照之后：lunch 的槽位被一条不相干的新行复用，metro 被原地改成匹配的内容
+        rows.remove(lunch);
+        RecordRow coffee = new RecordRow(ms(2025, 9, 3), -1500, "饮料", "咖啡", "拿铁");
+        rows.add(coffee);
+        metro.setNote("KFC 外卖");
+        index.update(metro);
+
+        var p = index.predicate(hits, q);
+        assertFalse(p.test(lunch));  // 已不在索引中
+        assertFalse(p.test(coffee)); // 沿用旧槽位，但命中结果属于旧行
+        assertTrue(p.test(metro));
+        assertEquals(1, hits(index, "kfc"));
+    }
+
+    private static int hits(SearchIndex index, String text) {
+        return index.snapshot().search(LedgerQuery.text(text), () -> false).count();
+    }
+
+    private static long ms(int y, int mo, int d) {
+        return LocalDate.of(y, mo, d).atTime(12, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2025 SpCo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package top.spco;
+
+import org.junit.jupiter.api.Test;
+import top.spco.cashflow.importer.config.RuleConfig;
+import top.spco.cashflow.importer.config.RuleDef;
+import top.spco.cashflow.importer.core.CompiledRuleSet;
+import top.spco.cashflow.importer.core.FinalTxn;
+import top.spco.cashflow.importer.core.RuleEngine;
+import top.spco.cashflow.importer.core.UnifiedTxn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RuleEngineTest {
+
+    private static RuleDef rule(String name, String payeeContains, String amount, String cat, String sub, boolean drop) {
+        RuleDef r = new RuleDef();
+        r.name = name;
+        if (payeeContains != null) {
+            r.when.payee = new RuleDef.TextMatch();
+            r.when.payee.contains = payeeContains;
+        }
+        r.when.amount = amount;
+        r.then.category = cat;
+        r.then.sub = sub;
+        if (drop) r.then.drop = true;
+        return r;
+    }
+
+    private static RuleConfig config(RuleDef... rules) {
+        RuleConfig cfg = new RuleConfig();
+        cfg.defaults.category = "其它";
+        cfg.defaults.sub = "未分类";
+        cfg.rules = List.of(rules);
+        return cfg;
+    }
+
+    @Test
+    public void firstMatchWins() {
+        RuleConfig cfg = config(
+                rule("退款丢弃", null, ">0", null, null, true),
+                rule("咖啡", "Starbucks", "<0", "饮料", "咖啡", false),
+                rule("兜底星巴克", "starbucks", null, "餐饮", "小吃", false)
+        );
+        List<UnifiedTxn> src = List.of(
+                new UnifiedTxn(1L, -3500, "STARBUCKS 国贸店", "拿铁", ""),
+                new UnifiedTxn(2L, 3500, "STARBUCKS 国贸店", "退款", ""),
+                new UnifiedTxn(3L, -100, "便利店", "", "/")
+        );
+
+        List<FinalTxn> out = RuleEngine.apply(src, cfg);
+        assertEquals(2, out.size());
+        assertEquals("饮料", out.get(0).category());
+        assertEquals("咖啡", out.get(0).subCategory());
+        assertEquals("拿铁", out.get(0).note()); // 备注为空时按 note -> item -> payee 回退
+        assertEquals("其它", out.get(1).category());
+        assertEquals("/", out.get(1).note());
+    }
+
+    @Test
+    public void compiledSetIsReusable() {
+        RuleDef r = rule("大额", null, "<=-100.5", "大额", "支出", false);
+        r.then.noteReplace = new RuleDef.NoteReplace();
+        r.then.noteReplace.regex = "\\d+";
+        r.then.noteReplace.with = "#";
+        CompiledRuleSet rules = CompiledRuleSet.compile(config(r));
+
+        List<UnifiedTxn> src = new ArrayList<>();
+        src.add(new UnifiedTxn(1L, -10050, "", "", "订单123"));
+        src.add(new UnifiedTxn(2L, -10049, "", "", "订单456"));
+        for (int round = 0; round < 2; round++) {
+            List<FinalTxn> out = RuleEngine.apply(src, rules);
+            assertEquals("大额", out.get(0).category());
+            assertEquals("订单#", out.get(0).note());
+            assertEquals("其它", out.get(1).category());
+            assertEquals("订单456", out.get(1).note());
+        }
+    }
+
+    @Test
+    public void indexedDispatchKeepsRuleOrder() {
+        RuleDef regexOnly = rule("正则", null, null, "正则", "-", false);
+        regexOnly.when.note = new RuleDef.TextMatch();
+        regexOnly.when.note.regex = "^#\\d+$";
+        RuleDef exact = rule("精确", null, null, "精确", "-", false);
+        exact.when.item = new RuleDef.TextMatch();
+        exact.when.item.equals = "Coffee";
+        RuleDef caseSensitive = rule("区分大小写", "ABC", null, "区分大小写", "-", false);
+        caseSensitive.when.payee.ignoreCase = false;
+
+        RuleConfig cfg = config(
+                rule("长关键字", "星巴克咖啡", null, "长", "-", false),
+                regexOnly,
+                rule("短关键字", "咖啡", null, "短", "-", false),
+                exact,
+                caseSensitive,
+                rule("重叠", "abcd", null, "重叠", "-", false)
+        );
+        List<UnifiedTxn> src = List.of(
+                new UnifiedTxn(1L, -1, "楼下星巴克咖啡", "", ""),
+                new UnifiedTxn(2L, -1, "瑞幸咖啡", "", "#42"),
+                new UnifiedTxn(3L, -1, "无", "coffee", ""),
+                new UnifiedTxn(4L, -1, "xABCd", "", ""),
+                new UnifiedTxn(5L, -1, "xabcd", "", ""),
+                new UnifiedTxn(6L, -1, "xAbc", "", "")
+        );
+        List<String> cats = RuleEngine.apply(src, cfg).stream().map(FinalTxn::category).toList();
+        assertEquals(List.of("长", "正则", "精确", "区分大小写", "重叠", "其它"), cats);
+    }
+
+    @Test
+    public void parallelApplyPreservesOrder() {
+        CompiledRuleSet rules = CompiledRuleSet.compile(config(
+                rule("丢弃奇数", "odd", null, null, null, true),
+                rule("偶数", "even", null, "偶数", "-", false)
+        ));
+        List<UnifiedTxn> src = new ArrayList<>();
+        for (int i = 0; i < 50_000; i++) {
+            src.add(new UnifiedTxn(i, -1, (i % 2 == 0) ? "even" : "odd", "", "n" + i));
+        }
+
+        List<FinalTxn> seq = new ArrayList<>();
+        for (UnifiedTxn t : src) {
+            FinalTxn f = RuleEngine.classify(t, rules);
+            if (f != null) seq.add(f);
+        }
+        List<FinalTxn> par = RuleEngine.applyParallel(src, rules, ForkJoinPool.commonPool());
+        assertEquals(25_000, par.size());
+        assertEquals(seq, par);
+        assertEquals(seq, RuleEngine.apply(src, rules));
+    }
+
+    @Test
+    public void invalidAmountExpressionFailsAtCompile() {
+        assertThrows(IllegalArgumentException.class,
+                () -> CompiledRuleSet.compile(config(rule("坏表达式", null, "~5", "a", "b", false))));
+        assertThrows(IllegalArgumentException.class,
+                () -> CompiledRuleSet.compile(config(rule("三位小数", null, ">1.005", "a", "b", false))));
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2025 SpCo
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package top.spco;
+
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.Test;
+import top.spco.cashflow.importer.core.UnifiedTxn;
+import top.spco.cashflow.importer.wechat.WeChatBillParser;
+import top.spco.cashflow.importer.wechat.WeChatXlsx;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WeChatBillParserTest {
+
+    private static final List<String> WECHAT_CSV = List.of(
+            "微信支付账单明细,,,,,,,,",
+            "微信昵称：[某人],,,,,,,,",
+            "----------------------微信支付账单明细列表--------------------,,,,,,,,",
+            "",
+            "交易时间,交易类型,交易对方,商品,收/支,金额(元),支付方式,当前状态,备注",
+            "2025-09-01 08:30:00,商户消费,\"星巴克, 国贸店\",拿铁,支出,¥35.00,零钱,支付成功,/",
+            "2025-09-02 12:00:05,转账,张三,转账,收入,\"¥1,200.50\",零钱,已收钱,还款"
+    );
+
+    private static File csv(Charset cs, boolean bom, List<String> lines) throws IOException {
+        File file = File.createTempFile("wechat", ".csv");
+        file.deleteOnExit();
+        byte[] body = String.join("\r\n", lines).getBytes(cs);
+        byte[] out = body;
+        if (bom) {
+            out = new byte[body.length + 3];
+            out[0] = (byte) 0xEF;
+            out[1] = (byte) 0xBB;
+            out[2] = (byte) 0xBF;
+            System.arraycopy(body, 0, out, 3, body.length);
+        }
+        Files.write(file.toPath(), out);
+        return file;
+    }
+
+    private static long ts(String s) {
+        return LocalDateTime.parse(s.replace(' ', 'T')).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Test
+    public void csvFindsHeaderAfterPreamble() throws IOException {
+        List<UnifiedTxn> expected = List.of(
+                new UnifiedTxn(ts("2025-09-01 08:30:00"), -3500, "星巴克, 国贸店", "拿铁", "/"),
+                new UnifiedTxn(ts("2025-09-02 12:00:05"), 120050, "张三", "转账", "还款"));
+        // 三种编码的同一份账单应得到相同结果：带 BOM 的 UTF-8、无 BOM 的 UTF-8、老版本导出的 GB18030
+        for (File f : List.of(csv(StandardCharsets.UTF_8, true, WECHAT_CSV),
+                csv(StandardCharsets.UTF_8, false, WECHAT_CSV),
+                csv(Charset.forName("GB18030"), false, WECHAT_CSV))) {
+            assertEquals(expected, new WeChatBillParser().parse(f));
+        }
+    }
+
+    @Test
+    public void csvStreamsRowsToSink() throws IOException {
+        List<String> lines = new ArrayList<>(WECHAT_CSV);
+        for (int i = 0; i < 1000; i++) lines.add("2025-09-03 10:00:00,商户消费,便利店,商品" + i + ",支出,1.00,零钱,支付成功,");
+        lines.add("------------------------,,,,,,,,");
+        List<UnifiedTxn> seen = new ArrayList<>();
+        new WeChatBillParser().forEach(csv(StandardCharsets.UTF_8, false, lines), seen::add);
+        assertEquals(1002, seen.size());
+        assertEquals("商品999", seen.get(1001).item());
+        assertEquals(-100, seen.get(1001).amountCents());
+    }
+
+    @Test
+    public void csvSniffToleratesCharSplitAtWindowEnd() throws IOException {
+        // 表头前放一大段中文说明，使嗅探窗口（64 KiB）的末尾落在某个三字节字符中间：不能因此误判为 GB18030
+        List<String> lines = new ArrayList<>();
+        String filler = "说明".repeat(500);
+        for (int i = 0; i < 30; i++) lines.add(filler);
+        lines.addAll(WECHAT_CSV);
+        File f = csv(StandardCharsets.UTF_8, false, lines);
+        assertEquals(2, (Files.readAllBytes(f.toPath())[64 * 1024] & 0xC0) >> 6, "窗口末尾应是续字节");
+        List<UnifiedTxn> out = new WeChatBillParser().parse(f);
+        assertEquals(2, out.size());
+        assertEquals("星巴克, 国贸店", out.get(0).payee());
+    }
+
+    @Test
+    public void csvWithoutHeaderFails() throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 300; i++) lines.add("无关内容" + i);
+        lines.addAll(WECHAT_CSV);
+        File f = csv(StandardCharsets.UTF_8, false, lines);
+        assertThrows(IllegalStateException.class, () -> new WeChatBillParser().parse(f));
+    }
+
+    @Test
+    public void xlsxSaxMatchesDom() throws IOException {
+        File file = File.createTempFile("wechat", ".xlsx");
+        file.deleteOnExit();
+        try (XSSFWorkbook wb = new XSSFWorkbook(); FileOutputStream out = new FileOutputStream(file)) {
+            wb.createSheet("说明").createRow(0).createCell(0).setCellValue("没有表头的工作表应被跳过");
+            Sheet s = wb.createSheet("账单");
+            s.createRow(0).createCell(0).setCellValue("微信支付账单明细");
+            String[] header = {"交易时间", "交易类型", "交易对方", "商品", "收/支", "金额(元)", "支付方式", "当前状态", "备注"};
+            Row h = s.createRow(16);
+            for (int i = 0; i < header.length; i++) h.createCell(i).setCellValue(header[i]);
+            CellStyle dateStyle = wb.createCellStyle();
+            dateStyle.setDataFormat(wb.createDataFormat().getFormat("yyyy-mm-dd hh:mm:ss"));
+
+            // 日期单元格（带毫秒）+ 数值金额
+            Row r = s.createRow(17);
+            r.createCell(0).setCellValue(LocalDateTime.of(2025, 9, 1, 8, 30, 0, 123_000_000));
+            r.getCell(0).setCellStyle(dateStyle);
+            r.createCell(2).setCellValue("星巴克");
+            r.createCell(3).setCellValue("拿铁");
+            r.createCell(4).setCellValue("支出");
+            r.createCell(5).setCellValue(35.0);
+            // 文本时间 + 文本金额，备注 "/" 视为空
+            r = s.createRow(18);
+            r.createCell(0).setCellValue("2025/09/02 12:00:05");
+            r.createCell(2).setCellValue("张三");
+            r.createCell(4).setCellValue("收入");
+            r.createCell(5).setCellValue("¥1,200.50");
+            r.createCell(8).setCellValue("/");
+            // 收/支为 "/" 的中性交易被跳过；空行被跳过
+            r = s.createRow(19);
+            r.createCell(0).setCellValue("2025-09-03 09:00:00");
+            r.createCell(4).setCellValue("/");
+            r.createCell(5).setCellValue("8.00");
+            s.createRow(21);
+            r = s.createRow(22);
+            r.createCell(0).setCellValue("2025-09-04 18:45:10");
+            r.createCell(4).setCellValue("支出");
+            r.createCell(5).setCellValue("-12.34");
+            r.createCell(8).setCellValue("  晚饭  ");
+            wb.write(out);
+        }
+
+        List<UnifiedTxn> dom = WeChatXlsx.read(file);
+        List<UnifiedTxn> sax = new ArrayList<>();
+        WeChatXlsx.stream(file, sax::add);
+        assertEquals(3, dom.size());
+        assertEquals(dom, sax);
+        assertEquals(ts("2025-09-01 08:30:00") + 123, sax.get(0).timestampMs()); // 日期单元格的毫秒不丢
+        assertEquals(-3500, sax.get(0).amountCents());
+        assertEquals(120050, sax.get(1).amountCents());
+        assertEquals("", sax.get(1).note());
+        assertEquals("晚饭", sax.get(2).note());
+    }
+}